@@ -0,0 +1,80 @@
+package com.maoyachen.sfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读出 files 个 fileKb 大小的文件: 逐个同步读取,或全部用 readAsync 同时发出后等待。
+ * 配合 -p device=async 比较异步块设备上的重叠效果
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncReadBenchmark extends ImageState {
+    @Param({"64"})
+    public int files;
+
+    @Param({"16", "256"})
+    public int fileKb;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        openImage();
+        SplittableRandom random = new SplittableRandom(42);
+        byte[] content = new byte[fileKb * 1024];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(content);
+            fs.touch("/f" + i);
+            fs.write("/f" + i, content, 0);
+        }
+        fs.sync();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeImage();
+    }
+
+    /**
+     * 与 readAsync 一样每个文件分配新的数组
+     */
+    @Benchmark
+    public long sequential() {
+        long total = 0;
+        for (int i = 0; i < files; i++) {
+            byte[] content = new byte[fileKb * 1024];
+            fs.read("/f" + i, content, 0);
+            total += content.length;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long async() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[files];
+        for (int i = 0; i < files; i++) {
+            futures[i] = fs.readAsync("/f" + i);
+        }
+        CompletableFuture.allOf(futures).join();
+        return futures.length;
+    }
+}
@@ -0,0 +1,110 @@
+package com.maoyachen.sfs.bench;
+
+import com.maoyachen.sfs.IndexNode;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压缩与不压缩时整个文件的读写吞吐量,内容为由少量单词和数字组成的日志式文本。
+ * 辅助计数 bytes 为每秒读写的文件字节数;结束时输出文件占用的块数和压缩率
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark extends ImageState {
+    private static final String[] WORDS = {"GET", "PUT", "/index.html", "/api/v1/users", "200", "404", "OK",
+            "INFO", "WARN", "request", "completed", "in", "ms", "from", "client", "session"};
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    @Param({"64", "1024"})
+    public int fileKb;
+
+    private byte[] content;
+    private byte[] buffer;
+
+    /**
+     * 每次调用累加读写的字节数,由 JMH 换算为每秒的字节数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        openImage();
+        fs.setCompression(compress);
+        content = text(fileKb * 1024);
+        buffer = new byte[content.length];
+        fs.touch("/f");
+        fs.write("/f", content, 0);
+        fs.sync();
+    }
+
+    private static byte[] text(int size) {
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            sb.append(random.nextInt(100000)).append(' ');
+            int words = 4 + random.nextInt(6);
+            for (int i = 0; i < words; i++) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            sb.append('\n');
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        IndexNode inode = fs.getInode(fs.stat("/f"));
+        int blockSize = fs.getSuperBlock().getBlockSize();
+        int raw = (content.length + blockSize - 1) / blockSize;
+        System.out.printf("%n%d bytes in %d blocks, %d uncompressed, ratio %.2f%n", content.length,
+                inode.getBlockCount(), raw, (double) raw / inode.getBlockCount());
+        closeImage();
+    }
+
+    /**
+     * 覆盖写入整个文件,压缩时每次重新压缩所有组
+     */
+    @Benchmark
+    public boolean write(Bytes counter) {
+        counter.bytes += content.length;
+        return fs.write("/f", content, 0);
+    }
+
+    @Benchmark
+    public boolean read(Bytes counter) {
+        counter.bytes += buffer.length;
+        return fs.read("/f", buffer, 0);
+    }
+}
@@ -0,0 +1,94 @@
+package com.maoyachen.sfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * touch / mkdir / unlink,每次调用在一个新目录中操作 BATCH 个文件,结果为单个操作的平均时间。
+ * inode 将用完时重新格式化,不计入时间
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateBenchmark extends ImageState {
+    private static final int BATCH = 500;
+    private static final int INODES = 4096;
+
+    private String[] names = new String[BATCH];
+    private int used;
+    private int batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        openImage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeImage();
+    }
+
+    /**
+     * 准备一个新的空目录,unlink 时预先在其中创建好文件
+     */
+    @Setup(Level.Invocation)
+    public void nextBatch(org.openjdk.jmh.infra.BenchmarkParams params) {
+        if (used + BATCH + 1 > INODES) {
+            fs.format();
+            used = 0;
+        }
+        String dir = "/b" + batch++;
+        fs.mkdir(dir);
+        used += 1 + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            names[i] = dir + "/n" + i;
+        }
+        if (params.getBenchmark().endsWith("unlink")) {
+            for (String name : names) {
+                fs.touch(name);
+            }
+            used -= BATCH;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void touch() {
+        for (String name : names) {
+            fs.touch(name);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void mkdir() {
+        for (String name : names) {
+            fs.mkdir(name);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void unlink() {
+        for (String name : names) {
+            fs.unlink(name);
+        }
+    }
+}
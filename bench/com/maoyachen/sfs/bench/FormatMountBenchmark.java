@@ -0,0 +1,79 @@
+package com.maoyachen.sfs.bench;
+
+import com.maoyachen.sfs.SimpleFileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * format 整个镜像,以及在已有 files 个文件的镜像上 mount
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatMountBenchmark extends ImageState {
+    @Param({"100", "2000"})
+    public int files;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        openImage();
+        fs.mkdir("/d");
+        byte[] content = new byte[1000];
+        for (int i = 0; i < files; i++) {
+            fs.touch("/d/f" + i);
+            fs.write("/d/f" + i, content, 0);
+        }
+        fs.sync();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeImage();
+    }
+
+    @Benchmark
+    public SimpleFileSystem mount() throws Exception {
+        SimpleFileSystem mounted = new SimpleFileSystem(disk);
+        mounted.mount();
+        return mounted;
+    }
+
+    /**
+     * 在另一个同样大小的镜像上格式化,不影响 mount 使用的镜像
+     */
+    @Benchmark
+    public SimpleFileSystem format(ScratchImage scratch) {
+        scratch.fs.format();
+        return scratch.fs;
+    }
+
+    @State(Scope.Benchmark)
+    public static class ScratchImage extends ImageState {
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            openImage();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            closeImage();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.maoyachen.sfs.bench;
+
+import com.maoyachen.sfs.AsyncDisk;
+import com.maoyachen.sfs.BlockDevice;
+import com.maoyachen.sfs.Disk;
+import com.maoyachen.sfs.MappedDisk;
+import com.maoyachen.sfs.SimpleFileSystem;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 各基准测试共用的磁盘镜像,位于临时目录,结束后删除
+ */
+@State(Scope.Benchmark)
+public abstract class ImageState {
+    /**
+     * 镜像大小(MB)
+     */
+    @Param({"16", "64"})
+    public int imageMb;
+
+    /**
+     * 块设备: disk, mmap 或 async
+     */
+    @Param({"disk"})
+    public String device;
+
+    protected Path path;
+    protected BlockDevice disk;
+    protected SimpleFileSystem fs;
+
+    /**
+     * 创建镜像并格式化
+     */
+    protected void openImage() throws IOException {
+        path = Files.createTempFile("sfs-bench", ".img");
+        Files.delete(path);
+        disk = newDevice();
+        fs = new SimpleFileSystem(disk);
+        fs.format();
+    }
+
+    /**
+     * 在同一个镜像文件上打开一个新的设备
+     */
+    protected BlockDevice newDevice() throws IOException {
+        int size = imageMb * 1024 * 1024;
+        if (device.equals("mmap")) {
+            return new MappedDisk(path.toString(), size);
+        }
+        if (device.equals("async")) {
+            return new AsyncDisk(path.toString(), size);
+        }
+        return new Disk(path.toString(), size);
+    }
+
+    protected void closeImage() throws IOException {
+        fs.close();
+        Files.deleteIfExists(path);
+    }
+}
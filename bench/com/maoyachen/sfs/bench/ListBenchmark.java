@@ -0,0 +1,83 @@
+package com.maoyachen.sfs.bench;
+
+import com.maoyachen.sfs.DirEntry;
+import com.maoyachen.sfs.SimpleFileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 列出有 width 个文件的目录并取得每个文件的大小: readdir 与 list 后逐个 stat 对比。
+ * cold 时每次调用前重新挂载,inode 表和块缓存都为空
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark extends ImageState {
+    @Param({"64", "2000"})
+    public int width;
+
+    @Param({"warm", "cold"})
+    public String cache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        openImage();
+        fs.mkdir("/d");
+        byte[] content = new byte[1000];
+        for (int i = 0; i < width; i++) {
+            fs.touch("/d/f" + i);
+            fs.write("/d/f" + i, content, 0);
+        }
+        fs.sync();
+    }
+
+    @Setup(Level.Invocation)
+    public void remount() throws Exception {
+        if (cache.equals("cold")) {
+            fs = new SimpleFileSystem(disk);
+            fs.mount();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeImage();
+    }
+
+    @Benchmark
+    public long readdir() {
+        long size = 0;
+        Iterator<DirEntry> it = fs.readdir("/d");
+        while (it.hasNext()) {
+            size += it.next().getSize();
+        }
+        return size;
+    }
+
+    @Benchmark
+    public long listAndStat() {
+        long size = 0;
+        for (String name : fs.list("/d")) {
+            size += fs.getInode(fs.stat("/d/" + name)).getSize();
+        }
+        return size;
+    }
+}
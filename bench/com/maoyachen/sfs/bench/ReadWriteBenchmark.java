@@ -0,0 +1,111 @@
+package com.maoyachen.sfs.bench;
+
+import com.maoyachen.sfs.FileHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过 {@link FileHandle} 在 fileKb 大小的文件上以 ioSize 为单位顺序或随机读写,结果为单次读写的平均时间
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWriteBenchmark extends ImageState {
+    @Param({"64", "1024"})
+    public int fileKb;
+
+    @Param({"512", "4096", "65536"})
+    public int ioSize;
+
+    private FileHandle handle;
+    private ByteBuffer buffer;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private long position;
+    private int blocks;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        openImage();
+        int size = fileKb * 1024;
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        fs.touch("/f");
+        fs.write("/f", content, 0);
+        handle = fs.open("/f");
+        buffer = ByteBuffer.allocate(Math.min(ioSize, size));
+        random.nextBytes(buffer.array());
+        blocks = size / buffer.capacity();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        handle.close();
+        closeImage();
+    }
+
+    /**
+     * 下一个顺序位置,到达文件末尾后回到开头
+     */
+    private long next() throws IOException {
+        long ret = position;
+        position += buffer.capacity();
+        if (position >= (long) blocks * buffer.capacity()) {
+            position = 0;
+            handle.flush();
+        }
+        return ret;
+    }
+
+    private long randomPosition() {
+        return (long) random.nextInt(blocks) * buffer.capacity();
+    }
+
+    @Benchmark
+    public int sequentialRead() throws IOException {
+        buffer.clear();
+        handle.position(next());
+        return handle.read(buffer);
+    }
+
+    @Benchmark
+    public int randomRead() throws IOException {
+        buffer.clear();
+        handle.position(randomPosition());
+        return handle.read(buffer);
+    }
+
+    @Benchmark
+    public int sequentialWrite() throws IOException {
+        buffer.clear();
+        handle.position(next());
+        return handle.write(buffer);
+    }
+
+    @Benchmark
+    public int randomWrite() throws IOException {
+        buffer.clear();
+        handle.position(randomPosition());
+        int n = handle.write(buffer);
+        handle.flush();
+        return n;
+    }
+}
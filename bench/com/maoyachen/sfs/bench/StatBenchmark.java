@@ -0,0 +1,78 @@
+package com.maoyachen.sfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在 depth 层深的目录中查找文件,最深的目录中有 width 个文件。
+ * cold 时每次查找前清空目录项缓存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatBenchmark extends ImageState {
+    @Param({"1", "4", "8"})
+    public int depth;
+
+    @Param({"16", "1024"})
+    public int width;
+
+    @Param({"warm", "cold"})
+    public String cache;
+
+    private String target;
+    private String missing;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        openImage();
+        StringBuilder dir = new StringBuilder();
+        for (int i = 1; i < depth; i++) {
+            dir.append("/d").append(i);
+            fs.mkdir(dir.toString());
+        }
+        for (int i = 0; i < width; i++) {
+            fs.touch(dir + "/f" + i);
+        }
+        target = dir + "/f" + width / 2;
+        missing = dir + "/none";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeImage();
+    }
+
+    @Benchmark
+    public int stat() {
+        if (cache.equals("cold")) {
+            fs.getDentryCache().clear();
+        }
+        return fs.stat(target);
+    }
+
+    @Benchmark
+    public int statMissing() {
+        if (cache.equals("cold")) {
+            fs.getDentryCache().clear();
+        }
+        return fs.stat(missing);
+    }
+}
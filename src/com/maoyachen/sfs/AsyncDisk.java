@@ -0,0 +1,281 @@
+package com.maoyachen.sfs;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 基于 AsynchronousFileChannel 的块设备。异步请求拆分为不超过 256K 的请求并发发出,全部完成时 future 完成;
+ * 同时在途的请求不超过队列深度,超出的请求排队,由完成的请求依次发出,不阻塞调用线程。
+ * 同步读写等待对应的异步请求完成
+ */
+public class AsyncDisk implements BlockDevice {
+    public static final int DEFAULT_QUEUE_DEPTH = 32;
+    /**
+     * 单个请求的最大字节数
+     */
+    private static final int CHUNK = 256 * 1024;
+
+    private final AsynchronousFileChannel channel;
+    private final ExecutorService executor;
+    private final long size;
+    private final int queueDepth;
+    private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+    private final Semaphore slots;
+    private final Queue<Request> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 一次带位置的读写,缓冲区读满或写完后完成
+     */
+    private class Request implements CompletionHandler<Integer, Void> {
+        final ByteBuffer buffer;
+        long position;
+        final boolean write;
+        /**
+         * 异步请求的 future 在公共线程池中完成,其后的回调可能等待锁,不能占用执行 I/O 的线程,
+         * 否则持有锁并等待同步读写的线程永远等不到空闲的 I/O 线程
+         */
+        final boolean async;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Request(ByteBuffer buffer, long position, boolean write, boolean async) {
+            this.buffer = buffer;
+            this.position = position;
+            this.write = write;
+            this.async = async;
+        }
+
+        void start() {
+            try {
+                if (write) {
+                    channel.write(buffer, position, null, this);
+                } else {
+                    channel.read(buffer, position, null, this);
+                }
+            } catch (RuntimeException e) {
+                failed(e, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer n, Void attachment) {
+            if (n >= 0 && buffer.hasRemaining()) {
+                position += n;
+                start();
+                return;
+            }
+            // 读到文件末尾时其余部分保持不变,与 Disk 相同
+            finish();
+            if (async) {
+                ForkJoinPool.commonPool().execute(() -> future.complete(null));
+            } else {
+                future.complete(null);
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            finish();
+            if (async) {
+                ForkJoinPool.commonPool().execute(() -> future.completeExceptionally(e));
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void finish() {
+            slots.release();
+            drain();
+        }
+    }
+
+    public AsyncDisk(String path, long size) throws IOException {
+        this(path, size, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param size       设备字节数,与文件长度不同时只修改文件长度
+     * @param queueDepth 同时在途的最大请求数,也是执行 I/O 的线程数
+     */
+    public AsyncDisk(String path, long size, int queueDepth) throws IOException {
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("queue depth must be positive: " + queueDepth);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+        }
+        this.size = size;
+        this.queueDepth = queueDepth;
+        this.slots = new Semaphore(queueDepth);
+        this.executor = Executors.newFixedThreadPool(queueDepth, r -> {
+            Thread t = new Thread(r, "async-disk");
+            t.setDaemon(true);
+            return t;
+        });
+        this.channel = AsynchronousFileChannel.open(Paths.get(path),
+                EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE), executor);
+    }
+
+    private CompletableFuture<Void> submit(ByteBuffer buffer, long position, boolean write, boolean async) {
+        Request request = new Request(buffer, position, write, async);
+        waiting.add(request);
+        drain();
+        return request.future;
+    }
+
+    /**
+     * 有空闲的队列位置时发出排队的请求
+     */
+    private void drain() {
+        while (!waiting.isEmpty() && slots.tryAcquire()) {
+            Request request = waiting.poll();
+            if (request == null) {
+                // 被其他线程取走,归还位置后重新检查,以免漏掉其间加入的请求
+                slots.release();
+                continue;
+            }
+            request.start();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> readAsync(int blockIndex, ByteBuffer[] buffers) {
+        return transfer(blockIndex, buffers, false, true);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(int blockIndex, ByteBuffer[] buffers) {
+        return transfer(blockIndex, buffers, true, true);
+    }
+
+    /**
+     * 每个缓冲区按 {@link #CHUNK} 拆成多个请求并发发出,完成后各缓冲区的 position 移到 limit
+     */
+    private CompletableFuture<Void> transfer(int blockIndex, ByteBuffer[] buffers, boolean write, boolean async) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        long position = position(blockIndex);
+        for (ByteBuffer buffer : buffers) {
+            for (int p = buffer.position(); p < buffer.limit(); p += CHUNK) {
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.position(p).limit(Math.min(buffer.limit(), p + CHUNK));
+                // 发出后 chunk 随时可能被读写,先取长度
+                int n = chunk.remaining();
+                futures.add(submit(chunk, position, write, async));
+                position += n;
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            for (ByteBuffer buffer : buffers) {
+                buffer.position(buffer.limit());
+            }
+        });
+    }
+
+    private long position(int blockIndex) {
+        return (long) blockIndex * blockSize;
+    }
+
+    private void await(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void read(int blockIndex, byte[] block) {
+        await(submit(ByteBuffer.wrap(block), position(blockIndex), false, false));
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] block) {
+        await(submit(ByteBuffer.wrap(block), position(blockIndex), true, false));
+    }
+
+    @Override
+    public void read(int blockIndex, byte[] buffer, int offset, int count) {
+        await(submit(ByteBuffer.wrap(buffer, offset, count * blockSize), position(blockIndex), false, false));
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] buffer, int offset, int count) {
+        await(submit(ByteBuffer.wrap(buffer, offset, count * blockSize), position(blockIndex), true, false));
+    }
+
+    @Override
+    public void read(int blockIndex, ByteBuffer[] buffers) {
+        await(transfer(blockIndex, buffers, false, false));
+    }
+
+    @Override
+    public void write(int blockIndex, ByteBuffer[] buffers) {
+        await(transfer(blockIndex, buffers, true, false));
+    }
+
+    @Override
+    public void clear() {
+        zero(0, (int) (size / blockSize));
+    }
+
+    @Override
+    public void sync() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        executor.shutdown();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return 当前在途的请求数
+     */
+    public int getInFlight() {
+        return queueDepth - slots.availablePermits();
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+}
@@ -0,0 +1,354 @@
+package com.maoyachen.sfs;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 位于 {@link BlockDevice} 之上的块缓存,LRU 淘汰,写回策略,容量以块计。
+ * 缓存按块号分为若干段,每段各自加锁、各自淘汰,不同段上的读写互不阻塞。
+ * 记入日志的块被钉在缓存中,所属事务提交之前不会写回原位置
+ */
+public class BlockCache implements BlockDevice {
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final BlockDevice disk;
+    private final int capacity;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    /**
+     * 已提交到日志的最大事务序号
+     */
+    private volatile int committed;
+
+    private static class CachedBlock {
+        final byte[] data;
+        boolean dirty;
+        /**
+         * 最后修改该块的日志事务序号,0 表示不属于任何事务
+         */
+        int pin;
+
+        CachedBlock(int blockSize) {
+            data = new byte[blockSize];
+        }
+    }
+
+    /**
+     * 一段缓存,访问时需持有该段的锁
+     */
+    private class Segment extends LinkedHashMap<Integer, CachedBlock> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            // accessOrder = true, 迭代顺序即为 LRU 顺序
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, CachedBlock> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            // 从最久未使用的块开始,跳过未提交的块,全部被钉住时暂时超出容量
+            Iterator<Map.Entry<Integer, CachedBlock>> it = entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, CachedBlock> e = it.next();
+                if (isPinned(e.getValue())) {
+                    continue;
+                }
+                // 淘汰前写回脏块
+                if (e.getValue().dirty) {
+                    disk.write(e.getKey(), e.getValue().data);
+                }
+                it.remove();
+                break;
+            }
+            return false;
+        }
+    }
+
+    public BlockCache(BlockDevice disk, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("cache capacity must be positive: " + capacity);
+        }
+        this.disk = disk;
+        this.capacity = capacity;
+        int count = Math.min(MAX_SEGMENTS, capacity);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // 容量不能整除时前几段多分一个
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+    }
+
+    private Segment segmentOf(int blockIndex) {
+        return segments[Math.floorMod(blockIndex, segments.length)];
+    }
+
+    private boolean isPinned(CachedBlock entry) {
+        return entry.pin > committed;
+    }
+
+    private boolean isCached(int blockIndex) {
+        Segment segment = segmentOf(blockIndex);
+        synchronized (segment) {
+            return segment.containsKey(blockIndex);
+        }
+    }
+
+    @Override
+    public void read(int blockIndex, byte[] block) {
+        Segment segment = segmentOf(blockIndex);
+        synchronized (segment) {
+            CachedBlock entry = segment.get(blockIndex);
+            if (entry == null) {
+                misses.increment();
+                entry = new CachedBlock(disk.getBlockSize());
+                disk.read(blockIndex, entry.data);
+                segment.put(blockIndex, entry);
+            } else {
+                hits.increment();
+            }
+            System.arraycopy(entry.data, 0, block, 0, entry.data.length);
+        }
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] block) {
+        write(blockIndex, block, 0);
+    }
+
+    /**
+     * 写入一个块并钉在缓存中,直到序号为 pin 的日志事务提交
+     */
+    public void write(int blockIndex, byte[] block, int pin) {
+        Segment segment = segmentOf(blockIndex);
+        synchronized (segment) {
+            CachedBlock entry = segment.get(blockIndex);
+            boolean added = entry == null;
+            if (added) {
+                // 整块覆盖,无需先读
+                entry = new CachedBlock(disk.getBlockSize());
+            }
+            System.arraycopy(block, 0, entry.data, 0, entry.data.length);
+            entry.dirty = true;
+            if (pin != 0) {
+                entry.pin = pin;
+            }
+            if (added) {
+                // 先填好内容再放入,其余块都被钉住时新块可能立即被淘汰写回
+                segment.put(blockIndex, entry);
+            }
+        }
+    }
+
+    /**
+     * 序号不大于 sequence 的日志事务已经提交,其中的块可以写回
+     */
+    public void setCommitted(int sequence) {
+        committed = sequence;
+    }
+
+    /**
+     * 连续块读取,若其中没有块在缓存中则整段直接从底层设备读取,不占用缓存
+     */
+    @Override
+    public void read(int blockIndex, byte[] buffer, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            if (isCached(blockIndex + i)) {
+                BlockDevice.super.read(blockIndex, buffer, offset, count);
+                return;
+            }
+        }
+        misses.add(count);
+        disk.read(blockIndex, buffer, offset, count);
+    }
+
+    /**
+     * 连续块写入,整段直接写到底层设备,同时更新已缓存的块。
+     * 先更新缓存再写设备,否则其间被淘汰的旧脏块会覆盖刚写入的数据
+     */
+    @Override
+    public void write(int blockIndex, byte[] buffer, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            Segment segment = segmentOf(blockIndex + i);
+            synchronized (segment) {
+                CachedBlock entry = segment.get(blockIndex + i);
+                if (entry != null) {
+                    System.arraycopy(buffer, offset + i * entry.data.length, entry.data, 0, entry.data.length);
+                    entry.dirty = false;
+                }
+            }
+        }
+        disk.write(blockIndex, buffer, offset, count);
+    }
+
+    /**
+     * 分散读,若其中没有块在缓存中则直接交给底层设备,不占用缓存
+     */
+    @Override
+    public void read(int blockIndex, ByteBuffer[] buffers) {
+        int count = Util.remaining(buffers) / disk.getBlockSize();
+        for (int i = 0; i < count; i++) {
+            if (isCached(blockIndex + i)) {
+                BlockDevice.super.read(blockIndex, buffers);
+                return;
+            }
+        }
+        misses.add(count);
+        disk.read(blockIndex, buffers);
+    }
+
+    /**
+     * 聚集写,直接交给底层设备,被整块覆盖的缓存块先行丢弃
+     */
+    @Override
+    public void write(int blockIndex, ByteBuffer[] buffers) {
+        discard(blockIndex, Util.remaining(buffers) / disk.getBlockSize(), true);
+        disk.write(blockIndex, buffers);
+    }
+
+    /**
+     * 异步分散读,若其中没有块在缓存中则交给底层设备,否则经缓存同步读取
+     */
+    @Override
+    public CompletableFuture<Void> readAsync(int blockIndex, ByteBuffer[] buffers) {
+        int count = Util.remaining(buffers) / disk.getBlockSize();
+        for (int i = 0; i < count; i++) {
+            if (isCached(blockIndex + i)) {
+                return BlockDevice.super.readAsync(blockIndex, buffers);
+            }
+        }
+        misses.add(count);
+        return disk.readAsync(blockIndex, buffers);
+    }
+
+    /**
+     * 异步聚集写,发出前丢弃被覆盖的缓存块;写入期间可能有读取把旧内容重新读入缓存,完成后再丢弃一次未修改的块
+     */
+    @Override
+    public CompletableFuture<Void> writeAsync(int blockIndex, ByteBuffer[] buffers) {
+        int count = Util.remaining(buffers) / disk.getBlockSize();
+        discard(blockIndex, count, true);
+        return disk.writeAsync(blockIndex, buffers).whenComplete((v, e) -> discard(blockIndex, count, false));
+    }
+
+    /**
+     * 丢弃 [blockIndex, blockIndex + count) 中的缓存块
+     *
+     * @param dirty 是否连脏块一起丢弃
+     */
+    private void discard(int blockIndex, int count, boolean dirty) {
+        for (int i = 0; i < count; i++) {
+            Segment segment = segmentOf(blockIndex + i);
+            synchronized (segment) {
+                CachedBlock entry = segment.get(blockIndex + i);
+                if (entry != null && (dirty || !entry.dirty)) {
+                    segment.remove(blockIndex + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * 将所有脏块写回磁盘,未提交的块除外
+     */
+    public void flush() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Map.Entry<Integer, CachedBlock> e : segment.entrySet()) {
+                    CachedBlock entry = e.getValue();
+                    if (entry.dirty && !isPinned(entry)) {
+                        disk.write(e.getKey(), entry.data);
+                        entry.dirty = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 写回脏块并持久化到底层设备
+     */
+    @Override
+    public void sync() {
+        flush();
+        disk.sync();
+    }
+
+    /**
+     * 只持久化底层设备,不写回脏块
+     */
+    public void force() {
+        disk.sync();
+    }
+
+    @Override
+    public void close() {
+        sync();
+        disk.close();
+    }
+
+    /**
+     * 丢弃所有缓存块并清空磁盘
+     */
+    @Override
+    public void clear() {
+        invalidate();
+        disk.clear();
+    }
+
+    private void invalidate() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    @Override
+    public long getSize() {
+        return disk.getSize();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return disk.getBlockSize();
+    }
+
+    /**
+     * 写回脏块、丢弃所有缓存块后修改底层设备的块大小,调用时不能有其他读写
+     */
+    @Override
+    public void setBlockSize(int blockSize) {
+        flush();
+        invalidate();
+        disk.setBlockSize(blockSize);
+    }
+}
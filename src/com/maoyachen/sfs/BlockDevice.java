@@ -0,0 +1,132 @@
+package com.maoyachen.sfs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 块设备,以块为单位读写,块大小默认 512 字节,挂载时按超级块中的记录设置
+ */
+public interface BlockDevice {
+    int DEFAULT_BLOCK_SIZE = 512;
+    int MAX_BLOCK_SIZE = 64 * 1024;
+
+    void read(int blockIndex, byte[] block);
+
+    void write(int blockIndex, byte[] block);
+
+    /**
+     * 读取从 blockIndex 开始的 count 个连续块到 buffer[offset] 处
+     */
+    default void read(int blockIndex, byte[] buffer, int offset, int count) {
+        int blockSize = getBlockSize();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            read(blockIndex + i, block);
+            System.arraycopy(block, 0, buffer, offset + i * blockSize, blockSize);
+        }
+    }
+
+    /**
+     * 将 buffer[offset] 处的 count 个块写入从 blockIndex 开始的连续块
+     */
+    default void write(int blockIndex, byte[] buffer, int offset, int count) {
+        int blockSize = getBlockSize();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(buffer, offset + i * blockSize, block, 0, blockSize);
+            write(blockIndex + i, block);
+        }
+    }
+
+    /**
+     * 分散读: 从 blockIndex 开始的连续块依次填满 buffers,总长度须为块大小的整数倍
+     */
+    default void read(int blockIndex, ByteBuffer[] buffers) {
+        byte[] bytes = new byte[Util.remaining(buffers)];
+        read(blockIndex, bytes, 0, bytes.length / getBlockSize());
+        int p = 0;
+        for (ByteBuffer buffer : buffers) {
+            int n = buffer.remaining();
+            buffer.put(bytes, p, n);
+            p += n;
+        }
+    }
+
+    /**
+     * 聚集写: 将 buffers 依次写入从 blockIndex 开始的连续块,总长度须为块大小的整数倍
+     */
+    default void write(int blockIndex, ByteBuffer[] buffers) {
+        byte[] bytes = new byte[Util.remaining(buffers)];
+        int p = 0;
+        for (ByteBuffer buffer : buffers) {
+            int n = buffer.remaining();
+            buffer.get(bytes, p, n);
+            p += n;
+        }
+        write(blockIndex, bytes, 0, bytes.length / getBlockSize());
+    }
+
+    /**
+     * 异步分散读,完成时 buffers 已填满。默认实现在调用线程中同步读取,返回已完成的 future
+     */
+    default CompletableFuture<Void> readAsync(int blockIndex, ByteBuffer[] buffers) {
+        try {
+            read(blockIndex, buffers);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 异步聚集写,完成后才可修改 buffers 中的数据。默认实现在调用线程中同步写入
+     */
+    default CompletableFuture<Void> writeAsync(int blockIndex, ByteBuffer[] buffers) {
+        try {
+            write(blockIndex, buffers);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 将从 blockIndex 开始的 count 个块清零,每次最多写 1MB
+     */
+    default void zero(int blockIndex, int count) {
+        int blockSize = getBlockSize();
+        int chunk = Math.max(1, (1 << 20) / blockSize);
+        byte[] zeros = new byte[Math.min(chunk, count) * blockSize];
+        for (int i = 0; i < count; i += chunk) {
+            write(blockIndex + i, zeros, 0, Math.min(chunk, count - i));
+        }
+    }
+
+    /**
+     * 将整个设备清零
+     */
+    void clear();
+
+    /**
+     * 将已写入的数据持久化到存储介质
+     */
+    void sync();
+
+    void close();
+
+    /**
+     * @return 设备字节数
+     */
+    long getSize();
+
+    int getBlockSize();
+
+    /**
+     * 设置块大小,须为 512 到 {@link #MAX_BLOCK_SIZE} 之间 2 的幂
+     */
+    void setBlockSize(int blockSize);
+
+    static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= DEFAULT_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE && Integer.bitCount(blockSize) == 1;
+    }
+}
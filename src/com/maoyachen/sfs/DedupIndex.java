@@ -0,0 +1,180 @@
+package com.maoyachen.sfs;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 数据块内容的指纹索引,开放寻址 (线性探测) 的散列表。每个槽一个 long: 高 32 位为指纹,低 32 位为块号,0 表示空槽。
+ * 另用一个位图记录哪些块的索引项有效: 块释放时清除,过时的槽在插入时被覆盖,不单独删除,探测链因此不会断开。
+ * 有效的块写入时先复制,内容不变,但指纹可能冲突,共用前仍须比较内容。
+ * <p>
+ * 磁盘上按槽的顺序存放,每槽 8 字节,小端序。不经日志,只在 sync 和关闭时写回修改过的块;
+ * 挂载时只有仍属于普通文件的块才有效。不线程安全,由调用者加锁
+ */
+public class DedupIndex {
+    /**
+     * 查找和插入最多探测的槽数,超过时放弃
+     */
+    private static final int MAX_PROBES = 32;
+
+    private final long[] slots;
+    private final int mask;
+    private final int dataStart;
+    private final int blockSize;
+    /**
+     * 索引项有效的块,第 i 位对应 dataStart + i 号块
+     */
+    private final BitSet live;
+    /**
+     * 修改过的槽所在的索引块
+     */
+    private final BitSet dirty = new BitSet();
+
+    /**
+     * @param capacity 槽数,2 的幂
+     */
+    public DedupIndex(int capacity, int dataStart, int blockSize) {
+        this.slots = new long[capacity];
+        this.mask = capacity - 1;
+        this.dataStart = dataStart;
+        this.blockSize = blockSize;
+        this.live = new BitSet();
+    }
+
+    /**
+     * @return 数据区有 dataBlocks 块时的槽数,为数据块数的 1 到 2 倍
+     */
+    public static int capacityFor(int dataBlocks) {
+        return Math.max(1024, Integer.highestOneBit(dataBlocks) * 2);
+    }
+
+    /**
+     * @return capacity 个槽在磁盘上占用的块数
+     */
+    public static int blocksFor(int capacity, int blockSize) {
+        return (int) (((long) capacity * 8 + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * 块内容的 32 位指纹 (MurmurHash3),len 为 4 的倍数
+     */
+    public static int fingerprint(byte[] bytes, int offset, int len) {
+        int h = 0x9747b28c;
+        for (int i = offset; i < offset + len; i += 4) {
+            int k = Util.getInt(bytes, i) * 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15) * 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        h ^= len;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int home(int fingerprint) {
+        // 指纹再乘一次,取高位
+        return (fingerprint * 0x9e3779b9) >>> Integer.numberOfLeadingZeros(mask);
+    }
+
+    public boolean isLive(int blockIndex) {
+        return blockIndex >= dataStart && live.get(blockIndex - dataStart);
+    }
+
+    /**
+     * 块已释放,之后该块的索引项无效
+     */
+    public void release(int blockIndex, int count) {
+        live.clear(blockIndex - dataStart, blockIndex - dataStart + count);
+    }
+
+    /**
+     * @return 指纹相同且有效的块,按探测顺序,没有时为空数组
+     */
+    public int[] find(int fingerprint) {
+        int[] ret = new int[0];
+        int i = home(fingerprint);
+        for (int p = 0; p < MAX_PROBES && slots[i] != 0; p++, i = (i + 1) & mask) {
+            int block = (int) slots[i];
+            if ((int) (slots[i] >>> 32) == fingerprint && isLive(block)) {
+                ret = Arrays.copyOf(ret, ret.length + 1);
+                ret[ret.length - 1] = block;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 登记块的内容,占用遇到的第一个空槽或过时的槽
+     *
+     * @return 探测 MAX_PROBES 个槽仍没有位置时返回 false
+     */
+    public boolean put(int fingerprint, int blockIndex) {
+        int i = home(fingerprint);
+        for (int p = 0; p < MAX_PROBES; p++, i = (i + 1) & mask) {
+            int block = (int) slots[i];
+            if (slots[i] == 0 || block == blockIndex || !isLive(block)) {
+                slots[i] = (long) fingerprint << 32 | (blockIndex & 0xffffffffL);
+                dirty.set(i * 8 / blockSize);
+                live.set(blockIndex - dataStart);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从磁盘上的内容恢复,只有 files 中的块 (普通文件的数据块) 有效
+     *
+     * @param files 第 i 位对应 dataStart + i 号块
+     */
+    public void load(byte[] bytes, BitSet files) {
+        for (int i = 0; i < slots.length; i++) {
+            long lo = Util.getInt(bytes, i * 8) & 0xffffffffL;
+            long hi = Util.getInt(bytes, i * 8 + 4) & 0xffffffffL;
+            slots[i] = hi << 32 | lo;
+            int block = (int) lo;
+            if (slots[i] != 0 && block >= dataStart && files.get(block - dataStart)) {
+                live.set(block - dataStart);
+            }
+        }
+    }
+
+    /**
+     * @return 修改过的索引块中 from 之后的第一个,没有时返回 -1
+     */
+    public int nextDirty(int from) {
+        return dirty.nextSetBit(from);
+    }
+
+    /**
+     * 把第 index 个索引块的内容编码到 block 中并清除修改标记
+     */
+    public void encode(int index, byte[] block) {
+        Arrays.fill(block, (byte) 0);
+        int perBlock = blockSize / 8;
+        for (int i = 0; i < perBlock && index * perBlock + i < slots.length; i++) {
+            long slot = slots[index * perBlock + i];
+            Util.putInt(block, i * 8, (int) slot);
+            Util.putInt(block, i * 8 + 4, (int) (slot >>> 32));
+        }
+        dirty.clear(index);
+    }
+
+    /**
+     * @return 有效的块数
+     */
+    public int getLiveCount() {
+        return live.cardinality();
+    }
+
+    /**
+     * @return 散列表和位图占用的内存字节数
+     */
+    public long getMemoryBytes() {
+        return (long) slots.length * 8 + live.size() / 8;
+    }
+}
@@ -0,0 +1,91 @@
+package com.maoyachen.sfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 路径到 inumber 的缓存,LRU 淘汰,同时缓存不存在的路径。所有方法都是同步的
+ */
+public class DentryCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * 路径不存在
+     */
+    public static final int NEGATIVE = -1;
+
+    private final int capacity;
+    private final LinkedHashMap<String, Integer> entries;
+    private long hits;
+    private long negativeHits;
+    private long misses;
+
+    public DentryCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > DentryCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param path 规范化后的路径
+     * @return inumber, 路径不存在时为 {@link #NEGATIVE},未缓存时为 null
+     */
+    public synchronized Integer get(String path) {
+        Integer inumber = entries.get(path);
+        if (inumber == null) {
+            misses++;
+        } else if (inumber == NEGATIVE) {
+            negativeHits++;
+        } else {
+            hits++;
+        }
+        return inumber;
+    }
+
+    public synchronized void put(String path, int inumber) {
+        if (capacity > 0) {
+            entries.put(path, inumber);
+        }
+    }
+
+    public synchronized void putNegative(String path) {
+        put(path, NEGATIVE);
+    }
+
+    public synchronized void invalidate(String path) {
+        entries.remove(path);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getNegativeHits() {
+        return negativeHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        negativeHits = 0;
+        misses = 0;
+    }
+}
@@ -0,0 +1,48 @@
+package com.maoyachen.sfs;
+
+/**
+ * {@link SimpleFileSystem#readdir} 返回的目录项,带有读取时 inode 的类型、大小和块数
+ */
+public class DirEntry {
+    private final String name;
+    private final int inumber;
+    private final boolean dir;
+    private final int size;
+    private final int blockCount;
+
+    DirEntry(String name, int inumber, IndexNode inode) {
+        this.name = name;
+        this.inumber = inumber;
+        this.dir = inode.isDir();
+        this.size = inode.getSize();
+        this.blockCount = inode.getBlockCount();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getInumber() {
+        return inumber;
+    }
+
+    public boolean isDir() {
+        return dir;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return 占用的数据块数,内联保存时为 0
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %10d %6d %s", dir ? "d" : "-", size, blockCount, name);
+    }
+}
@@ -2,53 +2,173 @@ package com.maoyachen.sfs;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-public class Disk {
+/**
+ * 基于文件的块设备,可被多个线程同时使用。单块和连续块的读写是带位置的 FileChannel 调用,不共享文件指针;
+ * FileChannel 没有带位置的分散读和聚集写,这两种请求在锁内设置文件指针后一次提交
+ */
+public class Disk implements BlockDevice {
     private final RandomAccessFile file;
-    private final int size;
+    private final FileChannel channel;
+    private final long size;
+    /**
+     * 保护分散读和聚集写使用的文件指针
+     */
+    private final Object vectorLock = new Object();
+    private volatile int blockSize = DEFAULT_BLOCK_SIZE;
 
-    public Disk(String path, int size) throws IOException {
+    /**
+     * @param size 设备字节数,与文件长度不同时只修改文件长度,新文件是稀疏文件,未写过的部分读出为 0
+     */
+    public Disk(String path, long size) throws IOException {
         file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
         this.size = size;
         if (file.length() != size) {
-            clear();
+            file.setLength(size);
         }
     }
 
+    @Override
     public void clear() {
-        byte[] block = new byte[1024];
+        byte[] zeros = new byte[MAX_BLOCK_SIZE];
         try {
-            file.seek(0);
-            for (int i = 0; i < size / 1024; i++) {
-                file.write(block);
+            for (long position = 0; position < size; position += zeros.length) {
+                writeFully(ByteBuffer.wrap(zeros, 0, (int) Math.min(zeros.length, size - position)), position);
             }
-            file.seek(0);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
     public void write(int blockIndex, byte[] block) {
         try {
-            file.seek(blockIndex * 512L);
-            file.write(block);
-            file.seek(0);
+            writeFully(ByteBuffer.wrap(block), position(blockIndex));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
     public void read(int blockIndex, byte[] block) {
         try {
-            file.seek(blockIndex * 512L);
-            file.read(block);
-            file.seek(0);
+            readFully(ByteBuffer.wrap(block), position(blockIndex));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public int getSize() {
+    @Override
+    public void read(int blockIndex, byte[] buffer, int offset, int count) {
+        try {
+            readFully(ByteBuffer.wrap(buffer, offset, count * blockSize), position(blockIndex));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] buffer, int offset, int count) {
+        try {
+            writeFully(ByteBuffer.wrap(buffer, offset, count * blockSize), position(blockIndex));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 分散读,一个 extent 的首尾块和中间的块合并为一次系统调用
+     */
+    @Override
+    public void read(int blockIndex, ByteBuffer[] buffers) {
+        long remaining = Util.remaining(buffers);
+        try {
+            synchronized (vectorLock) {
+                channel.position(position(blockIndex));
+                while (remaining > 0) {
+                    long n = channel.read(buffers);
+                    if (n < 0) {
+                        break;
+                    }
+                    remaining -= n;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 聚集写,一个 extent 的首尾块和中间的块合并为一次系统调用
+     */
+    @Override
+    public void write(int blockIndex, ByteBuffer[] buffers) {
+        long remaining = Util.remaining(buffers);
+        try {
+            synchronized (vectorLock) {
+                channel.position(position(blockIndex));
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long position(int blockIndex) {
+        return (long) blockIndex * blockSize;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void sync() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long getSize() {
         return size;
     }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
 }
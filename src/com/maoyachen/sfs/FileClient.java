@@ -0,0 +1,241 @@
+package com.maoyachen.sfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * {@link FileServer} 的客户端,线程安全。异步方法发出请求后立即返回,可连续发出多个请求(流水线),
+ * 响应由读线程按请求顺序交给对应的 future;同步方法等待响应。
+ * 连接断开后所有未完成和之后的请求以 {@link UncheckedIOException} 失败
+ */
+public class FileClient implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final Thread reader;
+    private volatile IOException failure;
+
+    /**
+     * 等待响应的请求
+     */
+    private static class Pending {
+        final byte op;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        Pending(byte op) {
+            this.op = op;
+        }
+    }
+
+    public FileClient(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    public FileClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        reader = new Thread(this::readLoop, "sfs-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * 发出一个请求。入队和写出在同一把锁下,保证队列顺序与请求顺序一致
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> send(byte op, String path, int offset, byte[] content) {
+        Pending request = new Pending(op);
+        synchronized (out) {
+            if (failure != null) {
+                request.future.completeExceptionally(new UncheckedIOException(failure));
+                return (CompletableFuture<T>) (CompletableFuture<?>) request.future;
+            }
+            pending.add(request);
+            try {
+                out.writeByte(op);
+                out.writeUTF(path);
+                if (op == FileServer.WRITE) {
+                    out.writeInt(offset);
+                    out.writeInt(content.length);
+                    out.write(content);
+                }
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return (CompletableFuture<T>) (CompletableFuture<?>) request.future;
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int status = in.read();
+                if (status < 0) {
+                    throw new IOException("connection closed by server");
+                }
+                Pending request = pending.poll();
+                if (request == null) {
+                    throw new IOException("unexpected response");
+                }
+                if (status == FileServer.BAD_REQUEST) {
+                    request.future.completeExceptionally(new IllegalArgumentException("bad request"));
+                    throw new IOException("server rejected request");
+                }
+                request.future.complete(status == FileServer.OK ? decode(request.op) : null);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 读出成功响应中的数据,失败的响应没有数据,结果为 null
+     */
+    private Object decode(byte op) throws IOException {
+        switch (op) {
+            case FileServer.STAT:
+                return in.readInt();
+            case FileServer.READ: {
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                return content;
+            }
+            case FileServer.LS: {
+                String[] names = new String[in.readInt()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = in.readUTF();
+                }
+                return names;
+            }
+            default:
+                return Boolean.TRUE;
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (out) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        Pending request;
+        while ((request = pending.poll()) != null) {
+            request.future.completeExceptionally(new UncheckedIOException(failure));
+        }
+    }
+
+    /**
+     * @return inumber,文件不存在时为 null
+     */
+    public CompletableFuture<Integer> statAsync(String path) {
+        return send(FileServer.STAT, path, 0, null);
+    }
+
+    /**
+     * @return 整个文件的内容,文件不存在或是目录时为 null
+     */
+    public CompletableFuture<byte[]> readAsync(String path) {
+        return send(FileServer.READ, path, 0, null);
+    }
+
+    /**
+     * 语义与 {@link SimpleFileSystem#write(String, byte[], int)} 相同
+     */
+    public CompletableFuture<Boolean> writeAsync(String path, byte[] content, int offset) {
+        return send(FileServer.WRITE, path, offset, content).thenApply(r -> r != null);
+    }
+
+    public CompletableFuture<Boolean> touchAsync(String path) {
+        return send(FileServer.TOUCH, path, 0, null).thenApply(r -> r != null);
+    }
+
+    public CompletableFuture<Boolean> mkdirAsync(String path) {
+        return send(FileServer.MKDIR, path, 0, null).thenApply(r -> r != null);
+    }
+
+    public CompletableFuture<Boolean> unlinkAsync(String path) {
+        return send(FileServer.UNLINK, path, 0, null).thenApply(r -> r != null);
+    }
+
+    /**
+     * @return 目录中的文件名,目录不存在时为 null
+     */
+    public CompletableFuture<String[]> lsAsync(String path) {
+        return send(FileServer.LS, path, 0, null);
+    }
+
+    public CompletableFuture<Boolean> syncAsync() {
+        return send(FileServer.SYNC, "", 0, null).thenApply(r -> r != null);
+    }
+
+    /**
+     * 等待响应,连接断开时抛出 IOException
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return inumber,文件不存在时返回 -1
+     */
+    public int stat(String path) throws IOException {
+        Integer inumber = await(statAsync(path));
+        return inumber == null ? -1 : inumber;
+    }
+
+    public byte[] read(String path) throws IOException {
+        return await(readAsync(path));
+    }
+
+    public boolean write(String path, byte[] content, int offset) throws IOException {
+        return await(writeAsync(path, content, offset));
+    }
+
+    public boolean touch(String path) throws IOException {
+        return await(touchAsync(path));
+    }
+
+    public boolean mkdir(String path) throws IOException {
+        return await(mkdirAsync(path));
+    }
+
+    public boolean unlink(String path) throws IOException {
+        return await(unlinkAsync(path));
+    }
+
+    public String[] ls(String path) throws IOException {
+        return await(lsAsync(path));
+    }
+
+    public void sync() throws IOException {
+        await(syncAsync());
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
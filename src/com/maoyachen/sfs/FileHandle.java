@@ -0,0 +1,203 @@
+package com.maoyachen.sfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * 已打开的文件,路径只在打开时解析一次。
+ * 读取时按预读窗口一次读入后续数据,小的顺序写入先合并在缓冲区中,关闭或 {@link #flush} 时写入磁盘
+ */
+public class FileHandle implements SeekableByteChannel {
+    public static final int DEFAULT_READ_AHEAD = 64 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER = 64 * 1024;
+
+    private final SimpleFileSystem fs;
+    private final int inumber;
+    private long position;
+    private boolean open = true;
+
+    private final byte[] readBuffer;
+    private long readBufferStart;
+    private int readBufferLength;
+
+    private final byte[] writeBuffer;
+    private long writeBufferStart;
+    private int writeBufferLength;
+
+    FileHandle(SimpleFileSystem fs, int inumber, int readAhead, int writeBuffer) {
+        this.fs = fs;
+        this.inumber = inumber;
+        this.readBuffer = new byte[readAhead];
+        this.writeBuffer = new byte[writeBuffer];
+    }
+
+    public int getInumber() {
+        return inumber;
+    }
+
+    public InputStream newInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    public OutputStream newOutputStream() {
+        return Channels.newOutputStream(this);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        flush();
+        int want = dst.remaining();
+        if (want == 0) {
+            return 0;
+        }
+        if (position < readBufferStart || position >= readBufferStart + readBufferLength) {
+            if (want >= readBuffer.length) {
+                // 大块读取直接读入调用者的缓冲区
+                return readDirect(dst);
+            }
+            // 预读
+            int n = fs.read(inumber, position, readBuffer, 0, readBuffer.length);
+            if (n <= 0) {
+                readBufferLength = 0;
+                return -1;
+            }
+            readBufferStart = position;
+            readBufferLength = n;
+        }
+        int offset = (int) (position - readBufferStart);
+        int n = Math.min(want, readBufferLength - offset);
+        dst.put(readBuffer, offset, n);
+        position += n;
+        return n;
+    }
+
+    private int readDirect(ByteBuffer dst) {
+        int n;
+        if (dst.hasArray()) {
+            n = fs.read(inumber, position, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+        } else {
+            byte[] bytes = new byte[dst.remaining()];
+            n = fs.read(inumber, position, bytes, 0, bytes.length);
+            if (n > 0) {
+                dst.put(bytes, 0, n);
+            }
+        }
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        readBufferLength = 0;
+        int n = src.remaining();
+        if (writeBufferLength > 0 && position != writeBufferStart + writeBufferLength) {
+            // 非顺序写入
+            flush();
+        }
+        if (n > writeBuffer.length - writeBufferLength) {
+            flush();
+        }
+        if (n >= writeBuffer.length) {
+            byte[] bytes = new byte[n];
+            src.get(bytes);
+            if (!fs.write(inumber, position, bytes, 0, n)) {
+                throw new IOException("写入失败," + fs.writeFailure(inumber));
+            }
+        } else {
+            if (writeBufferLength == 0) {
+                writeBufferStart = position;
+            }
+            src.get(writeBuffer, writeBufferLength, n);
+            writeBufferLength += n;
+        }
+        position += n;
+        return n;
+    }
+
+    /**
+     * 将合并缓冲区中的数据写入文件
+     */
+    public void flush() throws IOException {
+        if (writeBufferLength == 0) {
+            return;
+        }
+        int n = writeBufferLength;
+        writeBufferLength = 0;
+        if (!fs.write(inumber, writeBufferStart, writeBuffer, 0, n)) {
+            throw new IOException("写入失败," + fs.writeFailure(inumber));
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        if (writeBufferLength == 0) {
+            return fs.getFileSize(inumber);
+        }
+        return Math.max(fs.getFileSize(inumber), writeBufferStart + writeBufferLength);
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        ensureOpen();
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        flush();
+        readBufferLength = 0;
+        if (size < fs.getFileSize(inumber)) {
+            fs.truncate(inumber, (int) size);
+        }
+        if (position > size) {
+            position = size;
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            flush();
+            open = false;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
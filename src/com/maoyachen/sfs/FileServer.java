@@ -0,0 +1,228 @@
+package com.maoyachen.sfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在本机回环地址上以简单的二进制协议提供文件系统操作,每个连接一个线程,运行时支持时使用虚拟线程。
+ * 同一连接上的请求按顺序处理,客户端可以不等响应连续发送(流水线),已到达的请求处理完之前不刷新输出,
+ * 多个响应合并发送。
+ * <pre>
+ * 请求: op (1 字节), 路径 (writeUTF), WRITE 另有 offset (int), 长度 (int), 数据
+ * 响应: 状态 (1 字节, 0 成功, 1 失败, 2 无法解析的请求,之后关闭连接),成功时:
+ *   STAT inumber (int), READ 长度 (int) + 数据, LS 个数 (int) + 各文件名 (writeUTF)
+ * </pre>
+ * 整数均为大端序
+ */
+public class FileServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 7070;
+
+    public static final byte STAT = 1;
+    public static final byte READ = 2;
+    public static final byte WRITE = 3;
+    public static final byte TOUCH = 4;
+    public static final byte MKDIR = 5;
+    public static final byte UNLINK = 6;
+    public static final byte LS = 7;
+    public static final byte SYNC = 8;
+
+    public static final byte OK = 0;
+    public static final byte FAIL = 1;
+    public static final byte BAD_REQUEST = 2;
+
+    /**
+     * 单次写入的最大字节数
+     */
+    public static final int MAX_WRITE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SimpleFileSystem fs;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * 在回环地址的 port 端口上监听,port 为 0 时由系统分配
+     */
+    public FileServer(SimpleFileSystem fs, int port) throws IOException {
+        this.fs = fs;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.connections = newConnectionExecutor();
+        this.acceptor = new Thread(this::acceptLoop, "sfs-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * 运行时有虚拟线程 (JDK 21 及以上) 时每个连接一个虚拟线程,否则使用按需创建的平台线程
+     */
+    static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "sfs-connection");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        fs.getMetrics().add("server.connections", 1);
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            while (true) {
+                int op = in.read();
+                if (op < 0) {
+                    break;
+                }
+                if (!handle(op, in, out)) {
+                    out.flush();
+                    break;
+                }
+                fs.getMetrics().add("server.requests", 1);
+                // 流水线中后续的请求已经到达时先处理,响应一起发送
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // 客户端在请求中途断开
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    /**
+     * 处理一个请求并写出响应
+     *
+     * @return 请求无法解析时返回 false,之后关闭连接
+     */
+    private boolean handle(int op, DataInputStream in, DataOutputStream out) throws IOException {
+        String path = in.readUTF();
+        switch (op) {
+            case STAT: {
+                int inumber = fs.stat(path);
+                if (inumber == -1) {
+                    out.writeByte(FAIL);
+                } else {
+                    out.writeByte(OK);
+                    out.writeInt(inumber);
+                }
+                return true;
+            }
+            case READ: {
+                byte[] content = fs.readAsync(path).join();
+                if (content == null) {
+                    out.writeByte(FAIL);
+                } else {
+                    out.writeByte(OK);
+                    out.writeInt(content.length);
+                    out.write(content);
+                }
+                return true;
+            }
+            case WRITE: {
+                int offset = in.readInt();
+                int length = in.readInt();
+                if (offset < 0 || length < 0 || length > MAX_WRITE) {
+                    out.writeByte(BAD_REQUEST);
+                    return false;
+                }
+                byte[] content = new byte[length];
+                in.readFully(content);
+                out.writeByte(fs.write(path, content, offset) ? OK : FAIL);
+                return true;
+            }
+            case TOUCH:
+                out.writeByte(fs.touch(path) >= 0 ? OK : FAIL);
+                return true;
+            case MKDIR:
+                out.writeByte(fs.mkdir(path) >= 0 ? OK : FAIL);
+                return true;
+            case UNLINK:
+                out.writeByte(fs.unlink(path) ? OK : FAIL);
+                return true;
+            case LS: {
+                String[] names = fs.list(path);
+                if (names == null) {
+                    out.writeByte(FAIL);
+                } else {
+                    out.writeByte(OK);
+                    out.writeInt(names.length);
+                    for (String name : names) {
+                        out.writeUTF(name);
+                    }
+                }
+                return true;
+            }
+            case SYNC:
+                fs.sync();
+                out.writeByte(OK);
+                return true;
+            default:
+                out.writeByte(BAD_REQUEST);
+                return false;
+        }
+    }
+
+    /**
+     * 停止监听并断开所有连接,不关闭文件系统
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        connections.shutdown();
+    }
+
+    /**
+     * 等待服务停止
+     */
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+}
@@ -0,0 +1,64 @@
+package com.maoyachen.sfs;
+
+/**
+ * 文件和目录的碎片统计。文件的块在磁盘上分成几段不相邻的连续块,就有几个碎片;
+ * 相邻的块即使因长度上限分在多个 extent 中也算一段。内联保存和没有块的文件不计
+ */
+public class Fragmentation {
+    private int files;
+    private int fragmentedFiles;
+    private long blocks;
+    private long fragments;
+
+    /**
+     * @return inode 的块在磁盘上分成的段数
+     */
+    static int fragments(IndexNode inode) {
+        int ret = 0;
+        int next = -1;
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            if (inode.getExtentStart(e) != next) {
+                ret++;
+            }
+            next = inode.getExtentStart(e) + inode.getExtentLength(e);
+        }
+        return ret;
+    }
+
+    void add(IndexNode inode) {
+        int n = fragments(inode);
+        if (n == 0) {
+            return;
+        }
+        files++;
+        fragmentedFiles += n > 1 ? 1 : 0;
+        blocks += inode.getBlockCount();
+        fragments += n;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public int getFragmentedFiles() {
+        return fragmentedFiles;
+    }
+
+    public long getFragments() {
+        return fragments;
+    }
+
+    /**
+     * @return 文件中前后相邻的两块在磁盘上不相邻的比例,0 表示所有文件都是连续的
+     */
+    public double getScore() {
+        long pairs = blocks - files;
+        return pairs == 0 ? 0 : (double) (fragments - files) / pairs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %d fragmented, %d fragments in %d blocks (%.2f per file), %.2f%% discontiguous",
+                files, fragmentedFiles, fragments, blocks, files == 0 ? 0 : (double) fragments / files, getScore() * 100);
+    }
+}
@@ -0,0 +1,631 @@
+package com.maoyachen.sfs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * 一致性检查。用 ForkJoinPool 并行扫描 inode 块和目录树,并与磁盘上的位图交叉核对,发现:
+ * <ul>
+ * <li>指向未使用 inode 的目录项,以及指向同一个 inode 的多余目录项</li>
+ * <li>没有目录项指向的孤立 inode</li>
+ * <li>超出数据区的 extent、超过已分配块数或内联容量的文件大小,无效或超过已分配块数的压缩文件块组表</li>
+ * <li>同时属于多个 inode 的块,去重共用的普通文件块除外</li>
+ * <li>位图中已分配但没有 inode 或快照使用的块(泄漏),以及被使用但位图中未分配的块</li>
+ * <li>与实际引用数不符的引用计数,快照中超出数据区的 extent</li>
+ * </ul>
+ * 快照与当前文件系统共用块是正常的,只有当前文件系统中的 inode 之间共用块才是错误;
+ * 开启过去重的磁盘上普通文件之间可以共用数据块,间接块、目录和压缩文件的块仍不能共用。
+ * 检查只读,调用时不能有其他修改;修复由 {@link SimpleFileSystem#fsck} 按检查结果进行。
+ * <pre>
+ * 用法: Fsck [--repair] [--threads=N] &lt;disk&gt;
+ * </pre>
+ */
+public class Fsck {
+    /**
+     * 每个任务扫描的 inode 块数
+     */
+    private static final int INODE_BLOCKS_PER_TASK = 16;
+
+    private final BlockDevice disk;
+    private final SuperBlock sb;
+    private final int blockSize;
+    private final int inodesPerBlock;
+    private final int parallelism;
+
+    /**
+     * 按 inumber 索引,未使用的 inode 为 null
+     */
+    private IndexNode[] inodes;
+    /**
+     * 数据块的使用者,为最小的 inumber + 1,0 表示未使用
+     */
+    private AtomicIntegerArray owners;
+    /**
+     * 有多个使用者的数据块
+     */
+    private final BitSet shared = new BitSet();
+    /**
+     * 当前文件系统中各数据块被引用的次数
+     */
+    private AtomicIntegerArray uses;
+    /**
+     * 不能去重共用的块: 间接块、目录和压缩文件的块
+     */
+    private final BitSet exclusive = new BitSet();
+    /**
+     * 磁盘上有去重索引,普通文件之间可以共用数据块
+     */
+    private final boolean dedup;
+    /**
+     * 当前文件系统之外对数据块的引用: 快照,以及引用计数表和快照表本身
+     */
+    private AtomicIntegerArray extra;
+    /**
+     * 指向各 inode 的目录项数
+     */
+    private AtomicIntegerArray links;
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder entriesScanned = new LongAdder();
+    private Report report;
+
+    /**
+     * 检查结果
+     */
+    public static class Report {
+        private final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+        /**
+         * 需删除的目录项: 目录 inumber -> 文件名
+         */
+        final List<Map.Entry<Integer, String>> badEntries = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> orphans = Collections.synchronizedList(new ArrayList<>());
+        /**
+         * 需截断的文件: inumber -> 保留的块数
+         */
+        final Map<Integer, Integer> truncations = new ConcurrentHashMap<>();
+        /**
+         * 检查时读出的 inode,未使用的为 null
+         */
+        IndexNode[] inodes;
+        BitSet owned = new BitSet();
+        BitSet usedInodes = new BitSet();
+        /**
+         * 按实际引用算出的各数据块的引用计数,没有引用计数表时为 null
+         */
+        int[] refcounts;
+        boolean bitmapsWrong;
+        boolean rootBroken;
+        boolean repaired;
+        int inodesScanned;
+        long entriesScanned;
+        long bytesRead;
+        long elapsedNanos;
+
+        void problem(String message) {
+            problems.add(message);
+        }
+
+        /**
+         * @return 发现的问题,按描述排序
+         */
+        public List<String> getProblems() {
+            List<String> ret = new ArrayList<>(problems);
+            Collections.sort(ret);
+            return ret;
+        }
+
+        public boolean isClean() {
+            return problems.isEmpty();
+        }
+
+        /**
+         * 根目录损坏时无法修复
+         */
+        public boolean isRootBroken() {
+            return rootBroken;
+        }
+
+        public boolean isRepaired() {
+            return repaired;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (String problem : getProblems()) {
+                sb.append(problem).append('\n');
+            }
+            double seconds = elapsedNanos / 1e9;
+            sb.append(String.format("%d inodes, %d entries, %.1f MB metadata in %.1f ms (%.0f inodes/s, %.1f MB/s)%n",
+                    inodesScanned, entriesScanned, bytesRead / 1048576.0, elapsedNanos / 1e6,
+                    inodesScanned / seconds, bytesRead / 1048576.0 / seconds));
+            if (isClean()) {
+                sb.append("clean.\n");
+            } else {
+                sb.append(problems.size()).append(repaired ? " problems, repaired.\n" : " problems.\n");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * @param parallelism ForkJoinPool 的并行度
+     */
+    public Fsck(BlockDevice disk, SuperBlock sb, int parallelism) {
+        this.disk = disk;
+        this.sb = sb;
+        this.blockSize = sb.getBlockSize();
+        this.inodesPerBlock = blockSize / sb.getInodeSize();
+        this.parallelism = parallelism;
+        this.dedup = sb.getDedupBlocks() > 0;
+    }
+
+    public Report run() {
+        long start = System.nanoTime();
+        report = new Report();
+        inodes = new IndexNode[sb.getInodeCount()];
+        report.inodes = inodes;
+        owners = new AtomicIntegerArray(sb.getDataBlocks());
+        uses = new AtomicIntegerArray(sb.getDataBlocks());
+        extra = new AtomicIntegerArray(sb.getDataBlocks());
+        links = new AtomicIntegerArray(sb.getInodeCount());
+        boolean tables = false;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new InodeScan(0, sb.getInodeBlocks(), 1, null));
+            pool.submit(() -> IntStream.range(0, inodes.length).parallel().forEach(this::checkCrossLinks)).join();
+            if (sb.hasRefcounts()) {
+                tables = scanSnapshots(pool);
+            }
+            IndexNode root = inodes[0];
+            if (root == null || !root.isDir()) {
+                report.rootBroken = true;
+                report.problem("root inode 0 is not a directory");
+            } else {
+                links.set(0, 1);
+                pool.invoke(new DirScan(0, "/"));
+                for (int i = 1; i < inodes.length; i++) {
+                    if (inodes[i] != null && links.get(i) == 0) {
+                        report.orphans.add(i);
+                        report.problem(String.format("inode %d: orphan (no directory entry)", i));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < inodes.length; i++) {
+            if (inodes[i] != null) {
+                report.usedInodes.set(i);
+                report.inodesScanned++;
+            }
+        }
+        for (int i = 0; i < owners.length(); i++) {
+            if (owners.get(i) != 0 || extra.get(i) != 0) {
+                report.owned.set(i);
+            }
+        }
+        if (tables) {
+            checkRefcounts();
+        }
+        if (sb.hasBitmaps()) {
+            checkBitmaps();
+        }
+        report.entriesScanned = entriesScanned.sum();
+        report.bytesRead = bytesRead.sum();
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * 扫描 inode 表的 [from, to) 号块,块数较多时对半拆分
+     */
+    private class InodeScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        /**
+         * inode 表的起始块
+         */
+        private final int table;
+        /**
+         * 扫描快照中的 inode 表时为快照名称,否则为 null
+         */
+        private final String snapshot;
+
+        InodeScan(int from, int to, int table, String snapshot) {
+            this.from = from;
+            this.to = to;
+            this.table = table;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > INODE_BLOCKS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new InodeScan(from, mid, table, snapshot), new InodeScan(mid, to, table, snapshot));
+                return;
+            }
+            byte[] blocks = new byte[(to - from) * blockSize];
+            disk.read(table + from, blocks, 0, to - from);
+            bytesRead.add(blocks.length);
+            for (int b = 0; b < to - from; b++) {
+                for (int j = 0; j < inodesPerBlock; j++) {
+                    int offset = b * blockSize + j * sb.getInodeSize();
+                    if (blocks[offset] != 1) {
+                        continue;
+                    }
+                    int inumber = (from + b) * inodesPerBlock + j;
+                    IndexNode inode = new IndexNode();
+                    inode.decode(blocks, offset, sb.getInodeSize());
+                    if (snapshot != null) {
+                        scanSnapshotExtents(snapshot, inumber, inode);
+                        continue;
+                    }
+                    inodes[inumber] = inode;
+                    scanExtents(inumber, inode);
+                }
+            }
+        }
+    }
+
+    private boolean inDataArea(int start, int length) {
+        return length > 0 && start >= sb.getDataStart() && (long) start + length <= (long) sb.getDataStart() + sb.getDataBlocks();
+    }
+
+    /**
+     * 读入间接 extent 块,检查每个 extent 并登记其中的块
+     */
+    private void scanExtents(int inumber, IndexNode inode) {
+        if (inode.isInlineData()) {
+            // 解码时内联内容已截到 inode 末尾
+            if (inode.getSize() > inode.getInlineData().length || inode.getSize() < 0) {
+                report.problem(String.format("inode %d: inline size %d exceeds %d", inumber, inode.getSize(), inode.getInlineData().length));
+                report.truncations.merge(inumber, 0, Math::min);
+            }
+            return;
+        }
+        if (inode.getIndirect() != 0) {
+            if (inDataArea(inode.getIndirect(), 1)) {
+                byte[] block = new byte[blockSize];
+                disk.read(inode.getIndirect(), block);
+                bytesRead.add(blockSize);
+                inode.decodeIndirect(block);
+                claim(inumber, inode.getIndirect(), 1, true);
+            } else {
+                report.problem(String.format("inode %d: indirect block %d outside data area", inumber, inode.getIndirect()));
+                // 只保留 inode 中的 extent
+                inode.setIndirect(0);
+                truncate(inumber, inode, Math.min(inode.getExtentCount(), IndexNode.INLINE_EXTENTS));
+            }
+        }
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            int start = inode.getExtentStart(e);
+            int length = inode.getExtentLength(e);
+            if (!inDataArea(start, length)) {
+                report.problem(String.format("inode %d: extent %d (%d+%d) outside data area", inumber, e, start, length));
+                truncate(inumber, inode, e);
+                return;
+            }
+            claim(inumber, start, length, inode.isDir() || inode.hasFlag(IndexNode.FLAG_COMPRESSED));
+            logical += length;
+        }
+        if (inode.hasFlag(IndexNode.FLAG_COMPRESSED) && inode.getSize() > 0) {
+            // 文件大小是解压后的大小,按块组表检查占用的块数
+            int blocks = -1;
+            if (logical > 0) {
+                byte[] header = new byte[blockSize];
+                disk.read(inode.getExtentStart(0), header);
+                bytesRead.add(blockSize);
+                blocks = SimpleFileSystem.compressedBlocks(header, inode.getSize(), blockSize);
+            }
+            if (blocks == -1 || blocks > logical) {
+                report.problem(String.format("inode %d: bad compressed chunk table for size %d in %d blocks", inumber, inode.getSize(), logical));
+                report.truncations.merge(inumber, 0, Math::min);
+            }
+            return;
+        }
+        if (inode.getSize() > (long) logical * blockSize || inode.getSize() < 0) {
+            report.problem(String.format("inode %d: size %d exceeds %d allocated blocks", inumber, inode.getSize(), logical));
+            report.truncations.merge(inumber, logical, Math::min);
+        }
+    }
+
+    /**
+     * 记录 inode 只保留前 extents 个 extent,并从内存中的 inode 上去掉之后的 extent
+     */
+    private void truncate(int inumber, IndexNode inode, int extents) {
+        int keep = 0;
+        for (int e = 0; e < extents; e++) {
+            keep += inode.getExtentLength(e);
+        }
+        inode.truncateExtents(extents, extents > 0 ? inode.getExtentLength(extents - 1) : 0);
+        report.truncations.merge(inumber, keep, Math::min);
+    }
+
+    /**
+     * 登记 inumber 使用的块,每块的使用者取最小的 inumber
+     *
+     * @param exclusive 块是否不能与其他文件共用
+     */
+    private void claim(int inumber, int start, int length, boolean exclusive) {
+        int base = sb.getDataStart();
+        if (exclusive) {
+            synchronized (this.exclusive) {
+                this.exclusive.set(start - base, start - base + length);
+            }
+        }
+        for (int b = start; b < start + length; b++) {
+            int i = b - base;
+            uses.incrementAndGet(i);
+            while (true) {
+                int owner = owners.get(i);
+                if (owner != 0) {
+                    synchronized (shared) {
+                        shared.set(i);
+                    }
+                    if (owner <= inumber + 1 || owners.compareAndSet(i, owner, inumber + 1)) {
+                        break;
+                    }
+                } else if (owners.compareAndSet(i, 0, inumber + 1)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 与编号更小的 inode 共用块的文件,从第一个共用块处截断。去重共用的普通文件块不算
+     */
+    private void checkCrossLinks(int inumber) {
+        IndexNode inode = inodes[inumber];
+        if (inode == null || shared.isEmpty()) {
+            return;
+        }
+        int base = sb.getDataStart();
+        if (inode.getIndirect() != 0 && shared.get(inode.getIndirect() - base)
+                && owners.get(inode.getIndirect() - base) != inumber + 1) {
+            report.problem(String.format("inode %d: indirect block %d shared with inode %d",
+                    inumber, inode.getIndirect(), owners.get(inode.getIndirect() - base) - 1));
+            truncate(inumber, inode, Math.min(inode.getExtentCount(), IndexNode.INLINE_EXTENTS));
+        }
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            for (int k = 0; k < inode.getExtentLength(e); k++) {
+                int i = inode.getExtentStart(e) + k - base;
+                if (shared.get(i) && owners.get(i) != inumber + 1 && (!dedup || exclusive.get(i))) {
+                    report.problem(String.format("inode %d: block %d shared with inode %d",
+                            inumber, i + base, owners.get(i) - 1));
+                    report.truncations.merge(inumber, logical + k, Math::min);
+                    return;
+                }
+            }
+            logical += inode.getExtentLength(e);
+        }
+    }
+
+    /**
+     * 登记引用计数表、快照表和各快照引用的块
+     *
+     * @return 引用计数表和快照表是否在数据区内
+     */
+    private boolean scanSnapshots(ForkJoinPool pool) {
+        if (!inDataArea(sb.getRefcountStart(), sb.getRefcountBlocks() + 1)
+                || sb.getSnapshotTable() != sb.getRefcountStart() + sb.getRefcountBlocks()) {
+            report.problem(String.format("refcount table %d+%d or snapshot table %d outside data area",
+                    sb.getRefcountStart(), sb.getRefcountBlocks(), sb.getSnapshotTable()));
+            return false;
+        }
+        reference(sb.getRefcountStart(), sb.getRefcountBlocks() + 1);
+        if (dedup) {
+            if (!inDataArea(sb.getDedupStart(), sb.getDedupBlocks())) {
+                report.problem(String.format("dedup index %d+%d outside data area", sb.getDedupStart(), sb.getDedupBlocks()));
+                return false;
+            }
+            reference(sb.getDedupStart(), sb.getDedupBlocks());
+        }
+        byte[] table = new byte[blockSize];
+        disk.read(sb.getSnapshotTable(), table);
+        bytesRead.add(blockSize);
+        for (int i = 0; i < blockSize; i += 32) {
+            if (table[i] == 0) {
+                continue;
+            }
+            String name = Util.buildString(table, i, 28);
+            int copy = Util.getInt(table, i + 28);
+            if (!inDataArea(copy, sb.getInodeBlocks())) {
+                report.problem(String.format("snapshot %s: inode table %d outside data area", name, copy));
+                continue;
+            }
+            reference(copy, sb.getInodeBlocks());
+            pool.invoke(new InodeScan(0, sb.getInodeBlocks(), copy, name));
+        }
+        return true;
+    }
+
+    /**
+     * 登记快照中一个 inode 引用的块。快照只读,其中的问题只报告不修复
+     */
+    private void scanSnapshotExtents(String snapshot, int inumber, IndexNode inode) {
+        if (inode.getIndirect() != 0) {
+            if (!inDataArea(inode.getIndirect(), 1)) {
+                report.problem(String.format("snapshot %s: inode %d: indirect block %d outside data area",
+                        snapshot, inumber, inode.getIndirect()));
+                return;
+            }
+            byte[] block = new byte[blockSize];
+            disk.read(inode.getIndirect(), block);
+            bytesRead.add(blockSize);
+            inode.decodeIndirect(block);
+            reference(inode.getIndirect(), 1);
+        }
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            int start = inode.getExtentStart(e);
+            int length = inode.getExtentLength(e);
+            if (!inDataArea(start, length)) {
+                report.problem(String.format("snapshot %s: inode %d: extent %d (%d+%d) outside data area",
+                        snapshot, inumber, e, start, length));
+                return;
+            }
+            reference(start, length);
+        }
+    }
+
+    private void reference(int start, int length) {
+        for (int b = start; b < start + length; b++) {
+            extra.incrementAndGet(b - sb.getDataStart());
+        }
+    }
+
+    /**
+     * 与磁盘上的引用计数表比较,当前文件系统中的块计一次引用,去重共用的块按引用的次数计
+     */
+    private void checkRefcounts() {
+        int count = sb.getRefcountBlocks();
+        byte[] bytes = new byte[count * blockSize];
+        disk.read(sb.getRefcountStart(), bytes, 0, count);
+        bytesRead.add(bytes.length);
+        report.refcounts = new int[sb.getDataBlocks()];
+        for (int i = 0; i < report.refcounts.length; i++) {
+            int expected = (dedup ? uses.get(i) : owners.get(i) != 0 ? 1 : 0) + extra.get(i);
+            int recorded = (bytes[i * 2] & 0xff) | (bytes[i * 2 + 1] & 0xff) << 8;
+            report.refcounts[i] = expected;
+            if (recorded != expected) {
+                report.problem(String.format("block %d: refcount %d, expected %d", i + sb.getDataStart(), recorded, expected));
+            }
+        }
+    }
+
+    /**
+     * 读出目录内容,不超过文件大小和截断后保留的块
+     */
+    private byte[] readDir(int inumber, IndexNode dir) {
+        long limit = (long) report.truncations.getOrDefault(inumber, Integer.MAX_VALUE) * blockSize;
+        int size = (int) Math.max(0, Math.min(dir.getSize(), limit));
+        byte[] bytes = new byte[(size + blockSize - 1) / blockSize * blockSize];
+        int logical = 0;
+        for (int e = 0; e < dir.getExtentCount() && logical * blockSize < bytes.length; e++) {
+            int n = Math.min(dir.getExtentLength(e), bytes.length / blockSize - logical);
+            disk.read(dir.getExtentStart(e), bytes, logical * blockSize, n);
+            logical += n;
+        }
+        bytesRead.add(bytes.length);
+        return bytes.length == size ? bytes : Arrays.copyOf(bytes, size);
+    }
+
+    /**
+     * 检查一个目录中的目录项,并行检查其中的子目录
+     */
+    private class DirScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int inumber;
+        private final String path;
+
+        DirScan(int inumber, String path) {
+            this.inumber = inumber;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            IndexNode dir = inodes[inumber];
+            byte[] bytes = readDir(inumber, dir);
+            int from = dir.hasFlag(IndexNode.FLAG_HASHED_DIR) ? blockSize : 0;
+            List<DirScan> children = new ArrayList<>();
+            for (int i = from; i + 32 <= bytes.length; i += 32) {
+                if (bytes[i] == 0) {
+                    continue;
+                }
+                entriesScanned.increment();
+                String name = Util.buildString(bytes, i, 28);
+                String child = path.equals("/") ? "/" + name : path + "/" + name;
+                int target = Util.getInt(bytes, i + 28);
+                if (target < 0 || target >= inodes.length || inodes[target] == null) {
+                    report.problem(String.format("%s: entry points to unused inode %d", child, target));
+                    report.badEntries.add(Map.entry(inumber, name));
+                    continue;
+                }
+                if (links.incrementAndGet(target) > 1) {
+                    // 不支持硬链接,多出的目录项也可能构成环
+                    report.problem(String.format("%s: extra link to inode %d", child, target));
+                    report.badEntries.add(Map.entry(inumber, name));
+                    continue;
+                }
+                if (inodes[target].isDir()) {
+                    children.add(new DirScan(target, child));
+                }
+            }
+            invokeAll(children);
+        }
+    }
+
+    private BitSet readBitmap(int start, int count) {
+        byte[] bytes = new byte[count * blockSize];
+        disk.read(start, bytes, 0, count);
+        bytesRead.add(bytes.length);
+        return BitSet.valueOf(bytes);
+    }
+
+    private void checkBitmaps() {
+        BitSet marked = readBitmap(sb.getBlockBitmapStart(), sb.getBlockBitmapBlocks());
+        marked.clear(sb.getDataBlocks(), Math.max(sb.getDataBlocks(), marked.length()));
+        BitSet leaked = (BitSet) marked.clone();
+        leaked.andNot(report.owned);
+        BitSet unmarked = (BitSet) report.owned.clone();
+        unmarked.andNot(marked);
+        int base = sb.getDataStart();
+        for (int i = leaked.nextSetBit(0); i >= 0; i = leaked.nextSetBit(i + 1)) {
+            report.problem(String.format("block %d: marked used but not owned (leaked)", i + base));
+        }
+        for (int i = unmarked.nextSetBit(0); i >= 0; i = unmarked.nextSetBit(i + 1)) {
+            report.problem(String.format("block %d: in use but marked free", i + base));
+        }
+        BitSet inodeMarked = readBitmap(sb.getInodeBitmapStart(), sb.getInodeBitmapBlocks());
+        inodeMarked.clear(sb.getInodeCount(), Math.max(sb.getInodeCount(), inodeMarked.length()));
+        BitSet wrong = (BitSet) inodeMarked.clone();
+        wrong.xor(report.usedInodes);
+        for (int i = wrong.nextSetBit(0); i >= 0; i = wrong.nextSetBit(i + 1)) {
+            report.problem(String.format("inode %d: bitmap says %s", i, inodeMarked.get(i) ? "used but inode is free" : "free but inode is used"));
+        }
+        report.bitmapsWrong = !leaked.isEmpty() || !unmarked.isEmpty() || !wrong.isEmpty();
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean repair = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("--repair")) {
+                repair = true;
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else {
+                path = arg;
+            }
+        }
+        if (path == null || !new File(path).isFile()) {
+            System.out.println("usage: Fsck [--repair] [--threads=N] <disk>");
+            System.exit(-1);
+        }
+        SimpleFileSystem fs = new SimpleFileSystem(new Disk(path, new File(path).length()));
+        fs.mount();
+        Report report = fs.fsck(repair, threads);
+        System.out.print(report);
+        fs.close();
+        System.exit(report.isClean() || report.isRepaired() ? 0 : 1);
+    }
+}
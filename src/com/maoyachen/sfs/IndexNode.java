@@ -2,94 +2,198 @@ package com.maoyachen.sfs;
 
 import java.util.Arrays;
 
+/**
+ * inode,磁盘上每个 32 字节或更大的 2 的幂,大小记录在超级块中
+ * <pre>
+ * 0  valid
+ * 1  type
+ * 2  flags
+ * 4  size
+ * 8  3 个 extent,每个为 起始块(4 字节) + 长度(2 字节)
+ * 28 间接 extent 块
+ * 32 之后不使用
+ * </pre>
+ * 超过 3 个 extent 时,其余 extent 以 起始块(4 字节) + 长度(4 字节) 存放在间接 extent 块中。
+ * 有 FLAG_INLINE_DATA 标志的文件没有数据块,8 之后到 inode 末尾直接存放文件内容。
+ * 有 FLAG_COMPRESSED 标志的文件内容小到可以内联时仍内联保存,标志保留,增长后重新压缩。
+ * 旧版本的 inode 没有 FLAG_EXTENTS 标志,8 之后为 6 个直接块号,解码时转换为 extent。
+ */
 public class IndexNode {
+    /**
+     * 磁盘上一个 inode 的最小字节数,也是旧版本磁盘的 inode 大小
+     */
+    public static final int SIZE = 32;
+    /**
+     * 新格式化的磁盘中一个 inode 的字节数,可内联保存 120 字节以内的文件
+     */
+    public static final int DEFAULT_SIZE = 128;
+    public static final byte FLAG_EXTENTS = 1;
+    /**
+     * 哈希索引的目录
+     */
+    public static final byte FLAG_HASHED_DIR = 2;
+    /**
+     * 文件内容内联保存在 inode 中
+     */
+    public static final byte FLAG_INLINE_DATA = 4;
+    /**
+     * 文件内容分组压缩保存,文件块 0 为块组表
+     */
+    public static final byte FLAG_COMPRESSED = 8;
+    public static final int INLINE_EXTENTS = 3;
+    /**
+     * 间接 extent 块只使用前 512 字节,与块大小无关
+     */
+    public static final int INDIRECT_EXTENTS = 512 / 8;
+    public static final int MAX_EXTENTS = INLINE_EXTENTS + INDIRECT_EXTENTS;
+    public static final int MAX_EXTENT_LENGTH = 0xffff;
+
     private byte valid;
     private byte type;
+    private byte flags;
     private int size;
-    private int direct0;
-    private int direct1;
-    private int direct2;
-    private int direct3;
-    private int direct4;
-    private int direct5;
-
-    public int getDirect(int index) {
-        switch (index) {
-            case 0:
-                return direct0;
-            case 1:
-                return direct1;
-            case 2:
-                return direct2;
-            case 3:
-                return direct3;
-            case 4:
-                return direct4;
-            case 5:
-                return direct5;
-            default:
-                return -1;
+    private int extentCount;
+    private int[] extentStart = new int[INLINE_EXTENTS];
+    private int[] extentLength = new int[INLINE_EXTENTS];
+    private int indirect;
+    /**
+     * 内联保存的文件内容,长度与文件大小相同;不是内联文件时为 null
+     */
+    private byte[] inlineData;
+
+    /**
+     * @return inode 大小为 32 到块大小之间 2 的幂
+     */
+    public static boolean isValidSize(int size, int blockSize) {
+        return size >= SIZE && size <= blockSize && Integer.bitCount(size) == 1;
+    }
+
+    /**
+     * @return 大小为 size 的 inode 最多能内联保存的字节数
+     */
+    public static int inlineCapacity(int size) {
+        return size - 8;
+    }
+
+    public int getExtentCount() {
+        return extentCount;
+    }
+
+    public int getExtentStart(int index) {
+        return extentStart[index];
+    }
+
+    public int getExtentLength(int index) {
+        return extentLength[index];
+    }
+
+    /**
+     * @return 文件占用的数据块数,不含间接 extent 块
+     */
+    public int getBlockCount() {
+        int count = 0;
+        for (int i = 0; i < extentCount; i++) {
+            count += extentLength[i];
         }
+        return count;
     }
 
-    public void setDirect(int index, int direct) {
-        switch (index) {
-            case 0:
-                setDirect0(direct);
-                break;
-            case 1:
-                setDirect1(direct);
-                break;
-            case 2:
-                setDirect2(direct);
-                break;
-            case 3:
-                setDirect3(direct);
-                break;
-            case 4:
-                setDirect4(direct);
-                break;
-            case 5:
-                setDirect5(direct);
-                break;
+    /**
+     * 在文件末尾追加一段连续的块,与最后一个 extent 相邻时直接合并
+     *
+     * @return 实际追加的块数,extent 已满时返回 0
+     */
+    public int addExtent(int start, int length) {
+        if (extentCount > 0) {
+            int last = extentCount - 1;
+            if (extentStart[last] + extentLength[last] == start && extentLength[last] < MAX_EXTENT_LENGTH) {
+                int n = Math.min(length, MAX_EXTENT_LENGTH - extentLength[last]);
+                extentLength[last] += n;
+                return n;
+            }
+        }
+        if (extentCount == MAX_EXTENTS) {
+            return 0;
+        }
+        if (extentCount == extentStart.length) {
+            extentStart = Arrays.copyOf(extentStart, MAX_EXTENTS);
+            extentLength = Arrays.copyOf(extentLength, MAX_EXTENTS);
         }
+        int n = Math.min(length, MAX_EXTENT_LENGTH);
+        extentStart[extentCount] = start;
+        extentLength[extentCount] = n;
+        extentCount++;
+        return n;
     }
 
+    public void clearExtents() {
+        extentCount = 0;
+    }
 
-    public void setValid(byte valid) {
-        this.valid = valid;
+    /**
+     * 截短 extent 表,只保留前 count 个,且第 count - 1 个的长度改为 lastLength
+     */
+    public void truncateExtents(int count, int lastLength) {
+        extentCount = count;
+        if (count > 0) {
+            extentLength[count - 1] = lastLength;
+        }
     }
 
-    public void setType(byte type) {
-        this.type = type;
+    public boolean isInlineData() {
+        return inlineData != null;
     }
 
-    public void setSize(int size) {
-        this.size = size;
+    /**
+     * @return 内联保存的文件内容,可直接修改,之后需保存 inode
+     */
+    public byte[] getInlineData() {
+        return inlineData;
+    }
+
+    /**
+     * 改为内联保存 data,调用者需先释放文件的块
+     */
+    public void setInlineData(byte[] data) {
+        inlineData = data;
+        extentCount = 0;
+        indirect = 0;
+    }
+
+    public void clearInlineData() {
+        inlineData = null;
     }
 
-    public void setDirect0(int direct0) {
-        this.direct0 = direct0;
+    public int getIndirect() {
+        return indirect;
     }
 
-    public void setDirect1(int direct1) {
-        this.direct1 = direct1;
+    public void setIndirect(int indirect) {
+        this.indirect = indirect;
     }
 
-    public void setDirect2(int direct2) {
-        this.direct2 = direct2;
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
     }
 
-    public void setDirect3(int direct3) {
-        this.direct3 = direct3;
+    public void setFlag(byte flag, boolean on) {
+        if (on) {
+            flags |= flag;
+        } else {
+            flags &= ~flag;
+        }
+    }
+
+    public void setValid(byte valid) {
+        this.valid = valid;
     }
 
-    public void setDirect4(int direct4) {
-        this.direct4 = direct4;
+    public void setType(byte type) {
+        this.type = type;
     }
 
-    public void setDirect5(int direct5) {
-        this.direct5 = direct5;
+    public void setSize(int size) {
+        this.size = size;
     }
 
     public int getValid() {
@@ -108,56 +212,107 @@ public class IndexNode {
         return size;
     }
 
-    public int getDirect0() {
-        return direct0;
-    }
-
-    public int getDirect1() {
-        return direct1;
-    }
-
-    public int getDirect2() {
-        return direct2;
+    public byte[] toBytes() {
+        byte[] ret = new byte[SIZE];
+        encode(ret, 0, SIZE);
+        return ret;
     }
 
-    public int getDirect3() {
-        return direct3;
+    public static IndexNode fromBytes(byte[] bytes) {
+        IndexNode inode = new IndexNode();
+        inode.decode(bytes, 0, SIZE);
+        return inode;
     }
 
-    public int getDirect4() {
-        return direct4;
+    /**
+     * 将 inode 编码到 bytes[offset, offset + inodeSize),不分配中间数组。
+     * 超过 3 个的 extent 需另外调用 {@link #encodeIndirect}
+     */
+    public void encode(byte[] bytes, int offset, int inodeSize) {
+        bytes[offset] = valid;
+        bytes[offset + 1] = type;
+        bytes[offset + 3] = 0;
+        Util.putInt(bytes, offset + 4, size);
+        Arrays.fill(bytes, offset + 8, offset + inodeSize, (byte) 0);
+        if (inlineData != null) {
+            bytes[offset + 2] = (byte) (flags | FLAG_EXTENTS | FLAG_INLINE_DATA);
+            System.arraycopy(inlineData, 0, bytes, offset + 8, inlineData.length);
+            return;
+        }
+        bytes[offset + 2] = (byte) (flags | FLAG_EXTENTS);
+        for (int i = 0; i < INLINE_EXTENTS; i++) {
+            int p = offset + 8 + i * 6;
+            int start = i < extentCount ? extentStart[i] : 0;
+            int length = i < extentCount ? extentLength[i] : 0;
+            Util.putInt(bytes, p, start);
+            bytes[p + 4] = (byte) length;
+            bytes[p + 5] = (byte) (length >> 8);
+        }
+        Util.putInt(bytes, offset + 28, indirect);
     }
 
-    public int getDirect5() {
-        return direct5;
+    /**
+     * 从 bytes[offset, offset + inodeSize) 解码到当前 inode,只为内联文件分配数组。
+     * 间接 extent 块需另外调用 {@link #decodeIndirect}
+     */
+    public void decode(byte[] bytes, int offset, int inodeSize) {
+        valid = bytes[offset];
+        type = bytes[offset + 1];
+        flags = (byte) (bytes[offset + 2] & ~(FLAG_EXTENTS | FLAG_INLINE_DATA));
+        size = Util.getInt(bytes, offset + 4);
+        extentCount = 0;
+        inlineData = null;
+        if ((bytes[offset + 2] & FLAG_INLINE_DATA) != 0) {
+            indirect = 0;
+            // 损坏的大小不超出 inode,由 fsck 检查
+            int length = Math.max(0, Math.min(size, inlineCapacity(inodeSize)));
+            inlineData = Arrays.copyOfRange(bytes, offset + 8, offset + 8 + length);
+            return;
+        }
+        if ((bytes[offset + 2] & FLAG_EXTENTS) == 0) {
+            // 旧版本: 6 个直接块号
+            indirect = 0;
+            for (int i = 0; i < 6; i++) {
+                int direct = Util.getInt(bytes, offset + 8 + i * 4);
+                if (direct == 0) {
+                    break;
+                }
+                addExtent(direct, 1);
+            }
+            return;
+        }
+        for (int i = 0; i < INLINE_EXTENTS; i++) {
+            int p = offset + 8 + i * 6;
+            int length = (bytes[p + 4] & 0xff) | (bytes[p + 5] & 0xff) << 8;
+            if (length == 0) {
+                break;
+            }
+            extentStart[i] = Util.getInt(bytes, p);
+            extentLength[i] = length;
+            extentCount++;
+        }
+        indirect = Util.getInt(bytes, offset + 28);
     }
 
-    public byte[] toBytes() {
-        byte[] ret = new byte[32];
-        ret[0] = valid;
-        ret[1] = type;
-        System.arraycopy(Util.intToBytes(size), 0, ret, 4, 4);
-        System.arraycopy(Util.intToBytes(direct0), 0, ret, 8, 4);
-        System.arraycopy(Util.intToBytes(direct1), 0, ret, 12, 4);
-        System.arraycopy(Util.intToBytes(direct2), 0, ret, 16, 4);
-        System.arraycopy(Util.intToBytes(direct3), 0, ret, 20, 4);
-        System.arraycopy(Util.intToBytes(direct4), 0, ret, 24, 4);
-        System.arraycopy(Util.intToBytes(direct5), 0, ret, 28, 4);
-        return ret;
+    /**
+     * 将第 3 个之后的 extent 编码到间接 extent 块
+     */
+    public void encodeIndirect(byte[] block) {
+        Arrays.fill(block, (byte) 0);
+        for (int i = INLINE_EXTENTS; i < extentCount; i++) {
+            Util.putInt(block, (i - INLINE_EXTENTS) * 8, extentStart[i]);
+            Util.putInt(block, (i - INLINE_EXTENTS) * 8 + 4, extentLength[i]);
+        }
     }
 
-    public static IndexNode fromBytes(byte[] bytes) {
-        IndexNode inode = new IndexNode();
-        inode.valid = bytes[0];
-        inode.type = bytes[1];
-        inode.size = Util.bytesToInt(Arrays.copyOfRange(bytes, 4, 8));
-        inode.direct0 = Util.bytesToInt(Arrays.copyOfRange(bytes, 8, 12));
-        inode.direct1 = Util.bytesToInt(Arrays.copyOfRange(bytes, 12, 16));
-        inode.direct2 = Util.bytesToInt(Arrays.copyOfRange(bytes, 16, 20));
-        inode.direct3 = Util.bytesToInt(Arrays.copyOfRange(bytes, 20, 24));
-        inode.direct4 = Util.bytesToInt(Arrays.copyOfRange(bytes, 24, 28));
-        inode.direct5 = Util.bytesToInt(Arrays.copyOfRange(bytes, 28, 32));
-        return inode;
+    public void decodeIndirect(byte[] block) {
+        for (int i = 0; i < INDIRECT_EXTENTS; i++) {
+            int length = Util.getInt(block, i * 8 + 4);
+            if (length == 0) {
+                break;
+            }
+            addExtent(Util.getInt(block, i * 8), length);
+        }
     }
 
 }
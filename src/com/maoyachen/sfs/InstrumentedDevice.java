@@ -0,0 +1,123 @@
+package com.maoyachen.sfs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 统计底层块设备的请求次数、字节数和延迟,其余行为与被包装的设备相同
+ */
+public class InstrumentedDevice implements BlockDevice {
+    private final BlockDevice disk;
+    private final Metrics metrics;
+    private final LatencyHistogram readLatency;
+    private final LatencyHistogram writeLatency;
+    private final LatencyHistogram syncLatency;
+
+    public InstrumentedDevice(BlockDevice disk, Metrics metrics) {
+        this.disk = disk;
+        this.metrics = metrics;
+        this.readLatency = metrics.histogram("disk.read");
+        this.writeLatency = metrics.histogram("disk.write");
+        this.syncLatency = metrics.histogram("disk.sync");
+    }
+
+    private void readDone(long start, long bytes) {
+        readLatency.record(System.nanoTime() - start);
+        metrics.add("disk.read.bytes", bytes);
+    }
+
+    private void writeDone(long start, long bytes) {
+        writeLatency.record(System.nanoTime() - start);
+        metrics.add("disk.write.bytes", bytes);
+    }
+
+    @Override
+    public void read(int blockIndex, byte[] block) {
+        long start = System.nanoTime();
+        disk.read(blockIndex, block);
+        readDone(start, block.length);
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] block) {
+        long start = System.nanoTime();
+        disk.write(blockIndex, block);
+        writeDone(start, block.length);
+    }
+
+    @Override
+    public void read(int blockIndex, byte[] buffer, int offset, int count) {
+        long start = System.nanoTime();
+        disk.read(blockIndex, buffer, offset, count);
+        readDone(start, (long) count * disk.getBlockSize());
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] buffer, int offset, int count) {
+        long start = System.nanoTime();
+        disk.write(blockIndex, buffer, offset, count);
+        writeDone(start, (long) count * disk.getBlockSize());
+    }
+
+    @Override
+    public void read(int blockIndex, ByteBuffer[] buffers) {
+        long bytes = Util.remaining(buffers);
+        long start = System.nanoTime();
+        disk.read(blockIndex, buffers);
+        readDone(start, bytes);
+    }
+
+    @Override
+    public void write(int blockIndex, ByteBuffer[] buffers) {
+        long bytes = Util.remaining(buffers);
+        long start = System.nanoTime();
+        disk.write(blockIndex, buffers);
+        writeDone(start, bytes);
+    }
+
+    @Override
+    public CompletableFuture<Void> readAsync(int blockIndex, ByteBuffer[] buffers) {
+        long bytes = Util.remaining(buffers);
+        long start = System.nanoTime();
+        return disk.readAsync(blockIndex, buffers).whenComplete((v, e) -> readDone(start, bytes));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(int blockIndex, ByteBuffer[] buffers) {
+        long bytes = Util.remaining(buffers);
+        long start = System.nanoTime();
+        return disk.writeAsync(blockIndex, buffers).whenComplete((v, e) -> writeDone(start, bytes));
+    }
+
+    @Override
+    public void clear() {
+        disk.clear();
+    }
+
+    @Override
+    public void sync() {
+        long start = System.nanoTime();
+        disk.sync();
+        syncLatency.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        disk.close();
+    }
+
+    @Override
+    public long getSize() {
+        return disk.getSize();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return disk.getBlockSize();
+    }
+
+    @Override
+    public void setBlockSize(int blockSize) {
+        disk.setBlockSize(blockSize);
+    }
+}
@@ -0,0 +1,362 @@
+package com.maoyachen.sfs;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 元数据预写日志
+ * <pre>
+ * 日志区 0 号块为头部: 0 MAGIC, 4 日志区 1 号块处第一个事务的序号
+ * 事务依次存放: (描述块 + 其列出的块) ... + 提交块
+ * 描述块: 0 DESCRIPTOR_MAGIC, 4 序号, 8 块数 n, 12 n 个块号
+ * 提交块: 0 COMMIT_MAGIC, 4 序号, 8 块数, 12 所有块内容的 CRC32
+ * </pre>
+ * 元数据块的修改写入块缓存并钉住,提交时把一段时间内所有操作修改过的块一起写入日志区,只需一次 sync,
+ * 之后缓存才会把这些块写回原位置。日志区用过一半后做检查点: 写回所有脏块,更新头部的序号。
+ * 挂载时从头部的序号开始,依次重放完整提交的事务。
+ */
+public class Journal {
+    private static final int MAGIC = 0x4a524e4c;
+    private static final int DESCRIPTOR_MAGIC = 0x4a44534b;
+    private static final int COMMIT_MAGIC = 0x4a434d54;
+    private final BlockCache disk;
+    private final int blockSize;
+    /**
+     * 每个描述块最多列出的块数
+     */
+    private final int tags;
+    private final int start;
+    private final int blocks;
+    /**
+     * 操作持有读锁,提交时取写锁,保证提交的事务只包含完整的操作
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object commitLock = new Object();
+    /**
+     * 当前事务修改过的块
+     */
+    private final Set<Integer> running = new LinkedHashSet<>();
+    /**
+     * 上次检查点之后记入过日志的块
+     */
+    private final BitSet logged = new BitSet();
+    private Runnable checkpointListener;
+    /**
+     * 当前事务的序号
+     */
+    private volatile int sequence;
+    private volatile int committed;
+    /**
+     * 下一个事务在日志区中的位置
+     */
+    private int head = 1;
+    private long commits;
+
+    private Journal(BlockCache disk, int start, int blocks) {
+        this.disk = disk;
+        this.start = start;
+        this.blocks = blocks;
+        this.blockSize = disk.getBlockSize();
+        this.tags = (blockSize - 12) / 4;
+    }
+
+    /**
+     * 初始化一个空的日志区。日志区不清零,若其中有旧的日志,新的序号从旧记录可能用过的序号之后开始,
+     * 旧记录不会被当作新事务重放
+     */
+    public static Journal create(BlockCache disk, int start, int blocks) {
+        Journal journal = new Journal(disk, start, blocks);
+        byte[] header = new byte[disk.getBlockSize()];
+        disk.read(start, header);
+        int sequence = 1;
+        if (Util.getInt(header, 0) == MAGIC) {
+            // 每个事务至少占两块
+            sequence = Util.getInt(header, 4) + blocks / 2 + 1;
+        }
+        journal.reset(sequence);
+        return journal;
+    }
+
+    /**
+     * 打开日志区并重放其中完整提交的事务
+     */
+    public static Journal recover(BlockCache disk, int start, int blocks) {
+        Journal journal = new Journal(disk, start, blocks);
+        byte[] header = new byte[disk.getBlockSize()];
+        disk.read(start, header);
+        int sequence = Util.getInt(header, 0) == MAGIC ? Util.getInt(header, 4) : 1;
+        int position = 1;
+        int n;
+        while ((n = journal.replay(position, sequence)) > 0) {
+            position += n;
+            sequence++;
+        }
+        if (position > 1) {
+            disk.flush();
+            disk.force();
+        }
+        journal.reset(sequence);
+        return journal;
+    }
+
+    /**
+     * 重放 position 处序号为 sequence 的事务
+     *
+     * @return 事务占用的块数,事务不存在或不完整时返回 0
+     */
+    private int replay(int position, int sequence) {
+        byte[] descriptor = new byte[blockSize];
+        int[] targets = new int[0];
+        byte[] images = new byte[0];
+        int p = position;
+        while (true) {
+            if (p >= blocks) {
+                return 0;
+            }
+            disk.read(start + p, descriptor);
+            int magic = Util.getInt(descriptor, 0);
+            if (Util.getInt(descriptor, 4) != sequence) {
+                return 0;
+            }
+            if (magic == COMMIT_MAGIC) {
+                break;
+            }
+            int n = Util.getInt(descriptor, 8);
+            if (magic != DESCRIPTOR_MAGIC || n <= 0 || n > tags || p + 1 + n >= blocks) {
+                return 0;
+            }
+            int count = targets.length;
+            targets = Arrays.copyOf(targets, count + n);
+            images = Arrays.copyOf(images, (count + n) * blockSize);
+            for (int i = 0; i < n; i++) {
+                targets[count + i] = Util.getInt(descriptor, 12 + i * 4);
+            }
+            disk.read(start + p + 1, images, count * blockSize, n);
+            p += 1 + n;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(images);
+        if (Util.getInt(descriptor, 8) != targets.length || Util.getInt(descriptor, 12) != (int) crc.getValue()) {
+            // 提交块未完整写入
+            return 0;
+        }
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < targets.length; i++) {
+            System.arraycopy(images, i * blockSize, block, 0, blockSize);
+            disk.write(targets[i], block);
+        }
+        return p + 1 - position;
+    }
+
+    /**
+     * 清空日志区,下一个事务的序号为 sequence
+     */
+    private void reset(int sequence) {
+        byte[] header = new byte[blockSize];
+        Util.putInt(header, 0, MAGIC);
+        Util.putInt(header, 4, sequence);
+        disk.write(start, header, 0, 1);
+        disk.force();
+        this.sequence = sequence;
+        this.committed = sequence - 1;
+        disk.setCommitted(sequence - 1);
+        head = 1;
+        synchronized (running) {
+            logged.clear();
+        }
+    }
+
+    /**
+     * 检查点之后调用,此时此前释放的块可以重新分配
+     */
+    public void setCheckpointListener(Runnable listener) {
+        this.checkpointListener = listener;
+    }
+
+    /**
+     * 开始一个修改元数据的操作,与 {@link #end} 成对调用,不能嵌套。
+     * 当前事务过大时先提交
+     */
+    public void begin() {
+        int size;
+        synchronized (running) {
+            size = running.size();
+        }
+        if (size >= blocks / 8) {
+            commit();
+        }
+        lock.readLock().lock();
+    }
+
+    public void end() {
+        lock.readLock().unlock();
+    }
+
+    /**
+     * 在当前事务中写入一个元数据块,须在 begin / end 之间调用
+     */
+    public void write(int blockIndex, byte[] block) {
+        synchronized (running) {
+            running.add(blockIndex);
+            logged.set(blockIndex);
+        }
+        disk.write(blockIndex, block, sequence);
+    }
+
+    /**
+     * @return [from, to) 中上次检查点之后记入过日志的块,第 i 位对应 from + i
+     */
+    public BitSet getLogged(int from, int to) {
+        synchronized (running) {
+            return logged.get(from, to);
+        }
+    }
+
+    /**
+     * 当前事务的序号,传给 {@link #commit(int)} 可等待此前的修改提交
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getCommits() {
+        return commits;
+    }
+
+    /**
+     * 单个操作最多修改的块数。begin 时未提交的块少于日志区的 1/8,加上并发的操作,
+     * 一个操作只用空日志区的一半,整个事务仍能写入
+     */
+    public int getMaxOperationBlocks() {
+        return (blocks - 3) * tags / (tags + 1) / 2;
+    }
+
+    public void commit() {
+        commit(Integer.MAX_VALUE);
+    }
+
+    /**
+     * 组提交: 序号不超过 upTo 的事务已经由其他线程提交时直接返回,否则提交当前事务
+     */
+    public void commit(int upTo) {
+        synchronized (commitLock) {
+            if (committed >= upTo) {
+                return;
+            }
+            lock.writeLock().lock();
+            boolean locked = true;
+            try {
+                // 持有写锁,没有操作在修改 running
+                int[] targets;
+                synchronized (running) {
+                    targets = new int[running.size()];
+                    int i = 0;
+                    for (int blockIndex : running) {
+                        targets[i++] = blockIndex;
+                    }
+                }
+                if (targets.length == 0) {
+                    return;
+                }
+                int needed = (targets.length + tags - 1) / tags + targets.length + 1;
+                if (1 + needed > blocks) {
+                    // 事务不变,块仍钉在缓存中
+                    throw new IllegalStateException("事务过大,超出日志区");
+                }
+                if (head + needed > blocks) {
+                    // 之前的记录占用了日志区,先做检查点,当前事务未提交的块仍钉在缓存中
+                    checkpoint();
+                    synchronized (running) {
+                        for (int blockIndex : targets) {
+                            logged.set(blockIndex);
+                        }
+                    }
+                }
+                synchronized (running) {
+                    running.clear();
+                }
+                int seq = sequence;
+                byte[] images = new byte[targets.length * blockSize];
+                byte[] block = new byte[blockSize];
+                for (int i = 0; i < targets.length; i++) {
+                    disk.read(targets[i], block);
+                    System.arraycopy(block, 0, images, i * blockSize, blockSize);
+                }
+                sequence = seq + 1;
+                // 日志区将用过一半时提交后做检查点,期间不允许新的操作
+                boolean checkpoint = head + needed > blocks / 2;
+                if (!checkpoint) {
+                    lock.writeLock().unlock();
+                    locked = false;
+                }
+                writeRecord(seq, targets, images, needed);
+                disk.force();
+                committed = seq;
+                disk.setCommitted(seq);
+                commits++;
+                if (checkpoint) {
+                    checkpoint();
+                }
+            } finally {
+                if (locked) {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 提交当前事务并做检查点,之后日志区为空
+     */
+    public void checkpointNow() {
+        synchronized (commitLock) {
+            commit();
+            lock.writeLock().lock();
+            try {
+                checkpoint();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 写回所有已提交的块并清空日志区,调用时须持有写锁且没有未提交的修改
+     */
+    private void checkpoint() {
+        disk.flush();
+        disk.force();
+        reset(sequence);
+        if (checkpointListener != null) {
+            checkpointListener.run();
+        }
+    }
+
+    private void writeRecord(int seq, int[] targets, byte[] images, int needed) {
+        byte[] record = new byte[needed * blockSize];
+        int p = 0;
+        for (int i = 0; i < targets.length; i += tags) {
+            int n = Math.min(tags, targets.length - i);
+            Util.putInt(record, p, DESCRIPTOR_MAGIC);
+            Util.putInt(record, p + 4, seq);
+            Util.putInt(record, p + 8, n);
+            for (int j = 0; j < n; j++) {
+                Util.putInt(record, p + 12 + j * 4, targets[i + j]);
+            }
+            System.arraycopy(images, i * blockSize, record, p + blockSize, n * blockSize);
+            p += (1 + n) * blockSize;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(images);
+        Util.putInt(record, p, COMMIT_MAGIC);
+        Util.putInt(record, p + 4, seq);
+        Util.putInt(record, p + 8, targets.length);
+        Util.putInt(record, p + 12, (int) crc.getValue());
+        disk.write(start + head, record, 0, needed);
+        head += needed;
+    }
+}
@@ -0,0 +1,189 @@
+package com.maoyachen.sfs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对 {@link FileServer} 施加负载,输出吞吐量和各操作的延迟分位数。
+ * 每个连接一个线程,在自己的一组文件上随机读写和 stat,同时在途的请求不超过 depth 个。
+ * 给出磁盘文件时在进程内格式化该磁盘并在回环地址上启动服务,否则连接 --port 指定的服务
+ * <pre>
+ * 用法: LoadGenerator [--port=N] [--connections=N] [--depth=N] [--ops=N] [--size=N] [--files=N] [--read=百分比] [disk]
+ * </pre>
+ */
+public class LoadGenerator {
+    private final int port;
+    private final int depth;
+    private final int ops;
+    private final int size;
+    private final int files;
+    private final int readPercent;
+    private final LatencyHistogram all = new LatencyHistogram();
+    private final LatencyHistogram reads = new LatencyHistogram();
+    private final LatencyHistogram writes = new LatencyHistogram();
+    private final LatencyHistogram stats = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    private LoadGenerator(int port, int depth, int ops, int size, int files, int readPercent) {
+        this.port = port;
+        this.depth = depth;
+        this.ops = ops;
+        this.size = size;
+        this.files = files;
+        this.readPercent = readPercent;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = FileServer.DEFAULT_PORT;
+        int connections = 4;
+        int depth = 8;
+        int ops = 20000;
+        int size = 1024;
+        int files = 16;
+        int readPercent = 80;
+        String path = null;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring("--connections=".length()));
+            } else if (arg.startsWith("--depth=")) {
+                depth = Integer.parseInt(arg.substring("--depth=".length()));
+            } else if (arg.startsWith("--ops=")) {
+                ops = Integer.parseInt(arg.substring("--ops=".length()));
+            } else if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(arg.substring("--size=".length()));
+            } else if (arg.startsWith("--files=")) {
+                files = Integer.parseInt(arg.substring("--files=".length()));
+            } else if (arg.startsWith("--read=")) {
+                readPercent = Integer.parseInt(arg.substring("--read=".length()));
+            } else if (arg.startsWith("--")) {
+                System.out.println("usage: LoadGenerator [--port=N] [--connections=N] [--depth=N] [--ops=N] [--size=N] [--files=N] [--read=percent] [disk]");
+                System.exit(-1);
+            } else {
+                path = arg;
+            }
+        }
+        SimpleFileSystem fs = null;
+        FileServer server = null;
+        if (path != null) {
+            // 容纳所有文件,另留一半余量
+            long diskSize = Math.max(16L << 20, (long) connections * files * (size + 4096) * 3 / 2);
+            new File(path).delete();
+            fs = new SimpleFileSystem(new Disk(path, diskSize));
+            fs.format(BlockDevice.DEFAULT_BLOCK_SIZE, Math.max(SimpleFileSystem.DEFAULT_INODES, connections * files + 64));
+            server = new FileServer(fs, 0);
+            port = server.getPort();
+        }
+        LoadGenerator generator = new LoadGenerator(port, depth, ops, size, files, readPercent);
+        generator.run(connections);
+        if (server != null) {
+            server.close();
+            fs.close();
+        }
+        System.exit(generator.errors.get() == 0 ? 0 : 1);
+    }
+
+    private void run(int connections) throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            int id = c;
+            try (FileClient client = new FileClient(port)) {
+                client.mkdir("/c" + id);
+                byte[] content = new byte[size];
+                for (int f = 0; f < files; f++) {
+                    client.touch(file(id, f));
+                    client.write(file(id, f), content, 0);
+                }
+            }
+        }
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int id = c;
+            Thread t = new Thread(() -> {
+                try (FileClient client = new FileClient(port)) {
+                    drive(client, id);
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }, "load-" + c);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Exception e : failures) {
+            e.printStackTrace();
+            errors.incrementAndGet();
+        }
+        System.out.printf("%d connections, depth %d, %d-byte files, %d%% reads%n", connections, depth, size, readPercent);
+        System.out.printf("%d ops in %.2f s: %.0f ops/s, errors %d%n", all.getCount(), seconds, all.getCount() / seconds, errors.get());
+        System.out.println("op        count      p50      p90      p99      max  (us)");
+        print("all", all);
+        print("read", reads);
+        print("write", writes);
+        print("stat", stats);
+    }
+
+    private static String file(int connection, int index) {
+        return "/c" + connection + "/f" + index;
+    }
+
+    /**
+     * 在一个连接上发出 ops 个请求,最多 depth 个同时在途
+     */
+    private void drive(FileClient client, int id) throws InterruptedException {
+        SplittableRandom random = new SplittableRandom(id);
+        Semaphore window = new Semaphore(depth);
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        for (int i = 0; i < ops; i++) {
+            window.acquire();
+            String path = file(id, random.nextInt(files));
+            int dice = random.nextInt(100);
+            long begin = System.nanoTime();
+            CompletableFuture<?> future;
+            LatencyHistogram histogram;
+            if (dice < readPercent) {
+                future = client.readAsync(path);
+                histogram = reads;
+            } else if (dice < readPercent + (100 - readPercent) / 2) {
+                future = client.writeAsync(path, content, 0);
+                histogram = writes;
+            } else {
+                future = client.statAsync(path);
+                histogram = stats;
+            }
+            future.whenComplete((r, e) -> {
+                long nanos = System.nanoTime() - begin;
+                histogram.record(nanos);
+                all.record(nanos);
+                if (e != null || r == null || Boolean.FALSE.equals(r)) {
+                    errors.incrementAndGet();
+                }
+                window.release();
+            });
+        }
+        // 等待最后的请求完成
+        window.acquire(depth);
+    }
+
+    private static void print(String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        System.out.printf("%-8s %6d %8d %8d %8d %8d%n", name, histogram.getCount(),
+                histogram.getPercentile(50) / 1000, histogram.getPercentile(90) / 1000,
+                histogram.getPercentile(99) / 1000, histogram.getMax() / 1000);
+    }
+}
@@ -0,0 +1,171 @@
+package com.maoyachen.sfs;
+
+import java.util.Arrays;
+
+/**
+ * LZ77 家族的快速压缩,格式与 LZ4 的块格式相同。数据由若干序列组成,每个序列为:
+ * <pre>
+ * token          高 4 位为字面量长度,低 4 位为匹配长度 - 4,为 15 时后跟扩展字节
+ * 字面量长度扩展  每字节累加,直到不是 255 的字节
+ * 字面量
+ * 匹配距离        2 字节小端序,1 到 65535
+ * 匹配长度扩展    同字面量长度扩展
+ * </pre>
+ * 解压时由调用者给出原始长度,最后一个序列只有字面量。压缩时用 4 字节的哈希表查找匹配,不线程安全
+ */
+public class LzCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_DISTANCE = 0xffff;
+    /**
+     * 连续未找到匹配时跳过的步长按 2^SKIP_SHIFT 字节加一,不可压缩的数据很快跳过
+     */
+    private static final int SKIP_SHIFT = 6;
+
+    private final int[] table = new int[1 << HASH_BITS];
+
+    /**
+     * 压缩 src[srcOff, srcOff + srcLen) 到 dst[dstOff] 起
+     *
+     * @param limit 压缩结果允许的最大字节数
+     * @return 压缩后的字节数,超过 limit 时返回 -1
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int limit) {
+        Arrays.fill(table, -1);
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+        int p = srcOff;
+        int out = dstOff;
+        int outEnd = dstOff + limit;
+        while (p + MIN_MATCH <= end) {
+            int seq = Util.getInt(src, p);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = p;
+            if (ref < 0 || p - ref > MAX_DISTANCE || Util.getInt(src, ref) != seq) {
+                p += 1 + ((p - anchor) >>> SKIP_SHIFT);
+                continue;
+            }
+            int length = MIN_MATCH;
+            while (p + length < end && src[ref + length] == src[p + length]) {
+                length++;
+            }
+            out = sequence(src, anchor, p - anchor, p - ref, length, dst, out, outEnd);
+            if (out < 0) {
+                return -1;
+            }
+            p += length;
+            anchor = p;
+            if (p - 2 + MIN_MATCH <= end) {
+                table[hash(Util.getInt(src, p - 2))] = p - 2;
+            }
+        }
+        out = sequence(src, anchor, end - anchor, 0, 0, dst, out, outEnd);
+        return out < 0 ? -1 : out - dstOff;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     * 写出一个序列,length 为 0 时只有字面量
+     *
+     * @return 写出后的位置,超过 outEnd 时返回 -1
+     */
+    private static int sequence(byte[] src, int literal, int literals, int distance, int length,
+                                byte[] dst, int out, int outEnd) {
+        int matchCode = length == 0 ? 0 : length - MIN_MATCH;
+        // token、两段扩展字节和匹配距离的最大字节数
+        if ((long) out + 1 + literals + literals / 255 + 1 + 2 + matchCode / 255 + 1 > outEnd) {
+            return -1;
+        }
+        dst[out++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchCode, 15));
+        out = extend(dst, out, literals);
+        System.arraycopy(src, literal, dst, out, literals);
+        out += literals;
+        if (length == 0) {
+            return out;
+        }
+        dst[out++] = (byte) distance;
+        dst[out++] = (byte) (distance >>> 8);
+        return extend(dst, out, matchCode);
+    }
+
+    private static int extend(byte[] dst, int out, int n) {
+        if (n < 15) {
+            return out;
+        }
+        for (n -= 15; n >= 255; n -= 255) {
+            dst[out++] = (byte) 255;
+        }
+        dst[out++] = (byte) n;
+        return out;
+    }
+
+    /**
+     * 解压 src[srcOff, srcOff + srcLen) 中的数据,恰好得到 dstLen 字节时停止,之后的字节忽略
+     *
+     * @return 数据损坏时返回 false,dst 中的内容不确定
+     */
+    public static boolean decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        int in = srcOff;
+        int inEnd = srcOff + srcLen;
+        int out = dstOff;
+        int outEnd = dstOff + dstLen;
+        while (in < inEnd) {
+            int token = src[in++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (in >= inEnd || literals > dstLen) {
+                        return false;
+                    }
+                    b = src[in++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > inEnd - in || literals > outEnd - out) {
+                return false;
+            }
+            System.arraycopy(src, in, dst, out, literals);
+            in += literals;
+            out += literals;
+            if (out == outEnd) {
+                return true;
+            }
+            if (in + 2 > inEnd) {
+                return false;
+            }
+            int distance = (src[in] & 0xff) | (src[in + 1] & 0xff) << 8;
+            in += 2;
+            int length = token & 15;
+            if (length == 15) {
+                int b;
+                do {
+                    if (in >= inEnd || length > dstLen) {
+                        return false;
+                    }
+                    b = src[in++] & 0xff;
+                    length += b;
+                } while (b == 255);
+            }
+            length += MIN_MATCH;
+            if (distance == 0 || distance > out - dstOff || length > outEnd - out) {
+                return false;
+            }
+            int from = out - distance;
+            if (distance >= length) {
+                System.arraycopy(dst, from, dst, out, length);
+            } else {
+                // 重叠的匹配逐字节复制,重复前面的短模式
+                for (int i = 0; i < length; i++) {
+                    dst[out + i] = dst[from + i];
+                }
+            }
+            out += length;
+        }
+        return false;
+    }
+}
@@ -3,55 +3,198 @@ package com.maoyachen.sfs;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Scanner;
 
 public class Main {
+    private static final long DEFAULT_DISK_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * 用法: sfs [--cache=块数] [--mmap | --async[=队列深度]] [--batch[=脚本]] [--serve[=端口]] [--snapshot=名称] [--size=字节数] [--block-size=字节数] [--inodes=个数] [--inode-size=字节数] [--compress] [--dedup] 磁盘文件
+     * <p>
+     * --snapshot 时只读挂载已有磁盘中的快照,不重放日志,可与使用该磁盘的进程同时运行。
+     * --batch 时不输出欢迎信息和提示符,从脚本文件或标准输入依次执行命令,忽略空行和 # 开头的行。
+     * --serve 时同时在回环地址上启动 {@link FileServer},输入结束后继续服务直到进程退出,quit 停止服务。
+     * --size, --block-size, --inodes, --inode-size 只在创建新磁盘时使用,已有磁盘的大小取文件长度,块大小和 inode 数取超级块中的记录。
+     * inode 大小默认为 {@link IndexNode#DEFAULT_SIZE},不超过 inode 大小减 8 字节的文件内联保存在 inode 中。
+     * --compress 时新磁盘上新建的文件默认压缩保存,--dedup 时新磁盘开启去重
+     */
     public static void main(String[] args) {
-        Disk disk = null;
+        BlockDevice disk = null;
         boolean exist = false;
+        boolean mmap = false;
+        int queueDepth = 0;
+        int port = -1;
+        boolean batch = false;
+        String script = null;
+        String path = null;
+        String snapshot = null;
+        int cacheCapacity = BlockCache.DEFAULT_CAPACITY;
+        long size = DEFAULT_DISK_SIZE;
+        int blockSize = BlockDevice.DEFAULT_BLOCK_SIZE;
+        int inodes = SimpleFileSystem.DEFAULT_INODES;
+        int inodeSize = 0;
+        boolean compress = false;
+        boolean dedup = false;
+
+        for (String arg : args) {
+            if (arg.equals("--mmap")) {
+                mmap = true;
+            } else if (arg.equals("--async")) {
+                queueDepth = AsyncDisk.DEFAULT_QUEUE_DEPTH;
+            } else if (arg.startsWith("--async=")) {
+                queueDepth = Integer.parseInt(arg.substring("--async=".length()));
+            } else if (arg.equals("--batch")) {
+                batch = true;
+            } else if (arg.startsWith("--batch=")) {
+                batch = true;
+                script = arg.substring("--batch=".length());
+            } else if (arg.equals("--serve")) {
+                port = FileServer.DEFAULT_PORT;
+            } else if (arg.startsWith("--serve=")) {
+                port = Integer.parseInt(arg.substring("--serve=".length()));
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshot = arg.substring("--snapshot=".length());
+            } else if (arg.startsWith("--cache=")) {
+                cacheCapacity = Integer.parseInt(arg.substring("--cache=".length()));
+            } else if (arg.startsWith("--size=")) {
+                size = parseSize(arg.substring("--size=".length()));
+            } else if (arg.startsWith("--block-size=")) {
+                blockSize = (int) parseSize(arg.substring("--block-size=".length()));
+            } else if (arg.startsWith("--inodes=")) {
+                inodes = Integer.parseInt(arg.substring("--inodes=".length()));
+            } else if (arg.startsWith("--inode-size=")) {
+                inodeSize = Integer.parseInt(arg.substring("--inode-size=".length()));
+            } else if (arg.equals("--compress")) {
+                compress = true;
+            } else if (arg.equals("--dedup")) {
+                dedup = true;
+            } else {
+                path = arg;
+            }
+        }
+        if (path == null) {
+            System.out.println("usage: sfs [--cache=blocks] [--mmap | --async[=depth]] [--batch[=script]] [--serve[=port]] [--snapshot=name] [--size=bytes] [--block-size=bytes] [--inodes=n] [--inode-size=bytes] [--compress] [--dedup] <disk>");
+            System.exit(-1);
+        }
 
-        if (new File(args[0]).isFile()) {
+        File file = new File(path);
+        if (file.isFile() && file.length() > 0) {
             exist = true;
+            size = file.length();
+        } else if (snapshot != null) {
+            System.out.println(path + " 不存在");
+            System.exit(-1);
         }
 
         try {
-            disk = new Disk(args[0], 10 * 1024 * 1024);
+            if (mmap) {
+                disk = new MappedDisk(path, size);
+            } else if (queueDepth > 0) {
+                disk = new AsyncDisk(path, size, queueDepth);
+            } else {
+                disk = new Disk(path, size);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(-1);
         }
-        SimpleFileSystem sfs = new SimpleFileSystem(disk);
+        SimpleFileSystem sfs = new SimpleFileSystem(disk, cacheCapacity);
+        sfs.getMetrics().register(path);
         if (!exist) {
-            sfs.format();
             System.out.println("监测到为新的硬盘,格式化......");
+            boolean formatted = inodeSize == 0 ? sfs.format(blockSize, inodes) : sfs.format(blockSize, inodes, inodeSize);
+            if (!formatted) {
+                System.out.println("格式化失败,块大小须为 512 到 64K 之间 2 的幂,inode 大小须为 32 到块大小之间 2 的幂,且磁盘须能容纳元数据");
+                System.exit(-1);
+            }
         }
         try {
-            sfs.mount();
+            if (snapshot != null) {
+                sfs.mount(snapshot);
+            } else {
+                sfs.mount();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(-1);
         }
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-        LocalDateTime now = LocalDateTime.now();
+        if (!exist && compress) {
+            sfs.setCompression(true);
+        }
+        if (!exist && dedup) {
+            sfs.setDedup(true);
+        }
+        FileServer server = null;
+        if (port >= 0) {
+            try {
+                server = new FileServer(sfs, port);
+                System.out.println("listening on 127.0.0.1:" + server.getPort());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
         Scanner scanner = new Scanner(System.in);
-        String line = "";
-        System.out.println("┌─────────────────────────────────────────────────────────────────┐");
-        System.out.println("│ Welcome to Simple File System (SFS), type `quit` to quit.       │");
-        System.out.println("│ Login time: " + dtf.format(now) + "                                 │");
-        System.out.println("└─────────────────────────────────────────────────────────────────┘");
-        while (!line.strip().equals("quit")) {
-            System.out.print("$ ");
+        if (script != null) {
+            try {
+                scanner = new Scanner(new File(script), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+        if (!batch) {
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+            LocalDateTime now = LocalDateTime.now();
+            System.out.println("┌─────────────────────────────────────────────────────────────────┐");
+            System.out.println("│ Welcome to Simple File System (SFS), type `quit` to quit.       │");
+            System.out.println("│ Login time: " + dtf.format(now) + "                                 │");
+            System.out.println("└─────────────────────────────────────────────────────────────────┘");
+        }
+        String line;
+        while (true) {
+            if (!batch) {
+                System.out.print("$ ");
+            }
+            if (!scanner.hasNextLine()) {
+                if (server != null) {
+                    // 输入结束后继续服务
+                    try {
+                        server.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                break;
+            }
             line = scanner.nextLine();
+            if (line.strip().equals("quit")) {
+                break;
+            }
+            if (batch && (line.isBlank() || line.strip().startsWith("#"))) {
+                continue;
+            }
             String[] parsed = line.strip().split("\\s+");
             switch (parsed[0]) {
                 case "ls":
                     sfs.ls(parsed.length > 1 ? parsed[1] : "");
                     break;
                 case "format":
-                    sfs.format();
+                    // format [块大小] [inode 数] [inode 大小],省略时沿用当前值
+                    if (parsed.length > 1) {
+                        SuperBlock sb = sfs.getSuperBlock();
+                        int newBlockSize = (int) parseSize(parsed[1]);
+                        int newInodes = parsed.length > 2 ? Integer.parseInt(parsed[2]) : sb.getInodeCount();
+                        int newInodeSize = parsed.length > 3 ? Integer.parseInt(parsed[3]) : Math.min(sb.getInodeSize(), newBlockSize);
+                        System.out.println(sfs.format(newBlockSize, newInodes, newInodeSize) ? "success." : "fail.");
+                    } else {
+                        sfs.format();
+                    }
                     break;
                 case "cat":
                     sfs.cat(parsed.length > 1 ? parsed[1] : "", 0);
@@ -76,7 +219,7 @@ public class Main {
                 }
                 case "write": {
                     ArrayList<String> arrayLines = new ArrayList<>();
-                    while (true) {
+                    while (scanner.hasNextLine()) {
                         line = scanner.nextLine();
                         if (line.equals("")) {
                             break;
@@ -103,7 +246,130 @@ public class Main {
                     }
                     break;
                 }
+                case "sync":
+                    sfs.sync();
+                    break;
+                case "import":
+                case "export": {
+                    if (parsed.length < 3) {
+                        System.out.println("usage: import <hostdir> <sfsdir> | export <sfsdir> <hostdir>");
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    try (TreeCopier copier = new TreeCopier(sfs, Runtime.getRuntime().availableProcessors())) {
+                        if (parsed[0].equals("import")) {
+                            copier.importTree(Paths.get(parsed[1]), parsed[2]);
+                        } else {
+                            copier.exportTree(parsed[1], Paths.get(parsed[2]));
+                        }
+                        for (String error : copier.getErrors()) {
+                            System.out.println("fail: " + error);
+                        }
+                        System.out.printf("%d files, %d bytes in %d ms.%n", copier.getFiles(), copier.getBytes(),
+                                (System.nanoTime() - start) / 1000000);
+                    } catch (IOException e) {
+                        System.out.println("fail: " + e);
+                    }
+                    break;
+                }
+                case "fsck": {
+                    // fsck [repair]
+                    Fsck.Report report = sfs.fsck(parsed.length > 1 && parsed[1].equals("repair"),
+                            Runtime.getRuntime().availableProcessors());
+                    System.out.print(report != null ? report : "fail.\n");
+                    break;
+                }
+                case "defrag": {
+                    // 输出整理前后的碎片统计
+                    Fragmentation before = sfs.fragmentation();
+                    int moved = sfs.defrag();
+                    if (moved == -1) {
+                        System.out.println("fail.");
+                        break;
+                    }
+                    System.out.println("before: " + before);
+                    System.out.println("after:  " + sfs.fragmentation());
+                    System.out.println(moved + " files moved.");
+                    break;
+                }
+                case "snapshot": {
+                    // snapshot create <名称> | snapshot delete <名称> | snapshot list
+                    if (parsed.length > 2 && parsed[1].equals("create")) {
+                        System.out.println(sfs.createSnapshot(parsed[2]) ? "success." : "fail.");
+                    } else if (parsed.length > 2 && parsed[1].equals("delete")) {
+                        System.out.println(sfs.deleteSnapshot(parsed[2]) ? "success." : "fail.");
+                    } else if (parsed.length > 1 && parsed[1].equals("list")) {
+                        for (String name : sfs.listSnapshots()) {
+                            System.out.println(name);
+                        }
+                    } else {
+                        System.out.println("usage: snapshot create <name> | snapshot delete <name> | snapshot list");
+                    }
+                    break;
+                }
+                case "compress": {
+                    // compress default [on|off] | compress <文件> [on|off]
+                    if (parsed.length > 2 && parsed[1].equals("default")) {
+                        System.out.println(sfs.setCompression(parsed[2].equals("on")) ? "success." : "fail.");
+                    } else if (parsed.length > 1 && parsed[1].equals("default")) {
+                        System.out.println(sfs.getSuperBlock().hasFeature(SuperBlock.FEATURE_COMPRESS) ? "on" : "off");
+                    } else if (parsed.length > 1) {
+                        boolean on = parsed.length < 3 || parsed[2].equals("on");
+                        System.out.println(sfs.setCompressed(parsed[1], on) ? "success." : "fail.");
+                    } else {
+                        System.out.println("usage: compress default [on|off] | compress <file> [on|off]");
+                    }
+                    break;
+                }
+                case "dedup": {
+                    // dedup [on|off],不带参数时输出索引的大小和本次挂载以来的去重率
+                    if (parsed.length > 1) {
+                        System.out.println(sfs.setDedup(parsed[1].equals("on")) ? "success." : "fail.");
+                        break;
+                    }
+                    Map<String, Long> counters = sfs.getMetrics().getCounters();
+                    long written = counters.getOrDefault("dedup.blocks.written", 0L);
+                    long shared = counters.getOrDefault("dedup.blocks.shared", 0L);
+                    System.out.printf("%s, %d entries, %d bytes in memory, %d of %d blocks shared, ratio %.2f%n",
+                            sfs.isDedup() ? "on" : "off", counters.get("dedup.index.entries"), counters.get("dedup.index.bytes"),
+                            shared, written, written == 0 ? 1.0 : (double) written / Math.max(1, written - shared));
+                    break;
+                }
+                case "stats":
+                    if (parsed.length > 1 && parsed[1].equals("reset")) {
+                        sfs.getMetrics().reset();
+                    } else {
+                        System.out.print(sfs.getMetrics().getReport());
+                    }
+                    break;
+            }
+        }
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+        sfs.close();
+    }
+
+    /**
+     * 解析字节数,可带 K / M / G 后缀
+     */
+    private static long parseSize(String text) {
+        String s = text.strip().toUpperCase();
+        long unit = 1;
+        if (s.endsWith("K")) {
+            unit = 1024;
+        } else if (s.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (s.endsWith("G")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * unit;
     }
 }
@@ -0,0 +1,119 @@
+package com.maoyachen.sfs;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 将整个磁盘文件映射到内存的块设备,读写只是内存拷贝。每次读写使用独立的缓冲区视图,可被多个线程同时使用。
+ * 只映射一段,磁盘不能超过 2GB
+ */
+public class MappedDisk implements BlockDevice {
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+
+    public MappedDisk(String path, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("内存映射的磁盘不能超过 2GB: " + size);
+        }
+        file = new RandomAccessFile(path, "rw");
+        this.size = (int) size;
+        if (file.length() != size) {
+            // 稀疏文件,未写过的部分读出为 0
+            file.setLength(size);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    @Override
+    public void clear() {
+        byte[] zeros = new byte[MAX_BLOCK_SIZE];
+        ByteBuffer dst = buffer.duplicate();
+        while (dst.hasRemaining()) {
+            dst.put(zeros, 0, Math.min(zeros.length, dst.remaining()));
+        }
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] block) {
+        at(blockIndex).put(block);
+    }
+
+    @Override
+    public void read(int blockIndex, byte[] block) {
+        at(blockIndex).get(block);
+    }
+
+    @Override
+    public void read(int blockIndex, byte[] bytes, int offset, int count) {
+        at(blockIndex).get(bytes, offset, count * blockSize);
+    }
+
+    @Override
+    public void write(int blockIndex, byte[] bytes, int offset, int count) {
+        at(blockIndex).put(bytes, offset, count * blockSize);
+    }
+
+    @Override
+    public void read(int blockIndex, ByteBuffer[] buffers) {
+        ByteBuffer src = at(blockIndex);
+        for (ByteBuffer dst : buffers) {
+            int n = dst.remaining();
+            ByteBuffer slice = src.slice();
+            slice.limit(n);
+            dst.put(slice);
+            src.position(src.position() + n);
+        }
+    }
+
+    @Override
+    public void write(int blockIndex, ByteBuffer[] buffers) {
+        ByteBuffer dst = at(blockIndex);
+        for (ByteBuffer src : buffers) {
+            dst.put(src);
+        }
+    }
+
+    /**
+     * 定位到 blockIndex 的独立视图,各线程之间不共享 position
+     */
+    private ByteBuffer at(int blockIndex) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(blockIndex * blockSize);
+        return view;
+    }
+
+    @Override
+    public void sync() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() {
+        sync();
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+}
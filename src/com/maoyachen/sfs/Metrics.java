@@ -0,0 +1,132 @@
+package com.maoyachen.sfs;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * 按名称记录的计数器和操作延迟直方图,可被多个线程同时使用
+ */
+public class Metrics implements MetricsMXBean {
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    /**
+     * 由其他对象维护的计数,只读取,reset 时调用对应的清零方法
+     */
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final List<Runnable> resetListeners = new ArrayList<>();
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public void add(String name, long n) {
+        counter(name).add(n);
+    }
+
+    /**
+     * 记录操作 name 从 start (System.nanoTime) 到现在的耗时
+     */
+    public void record(String name, long start) {
+        histogram(name).record(System.nanoTime() - start);
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public synchronized void onReset(Runnable listener) {
+        resetListeners.add(listener);
+    }
+
+    /**
+     * 以 com.maoyachen.sfs:type=Metrics,name=name 注册到平台 MBeanServer,同名的旧实例被替换
+     */
+    public void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.maoyachen.sfs:type=Metrics,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> ret = new TreeMap<>();
+        counters.forEach((name, counter) -> ret.put(name, counter.sum()));
+        gauges.forEach((name, value) -> ret.put(name, value.getAsLong()));
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return latencies(LatencyHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50() {
+        return latencies(h -> h.getPercentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99() {
+        return latencies(h -> h.getPercentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMax() {
+        return latencies(LatencyHistogram::getMax);
+    }
+
+    private Map<String, Long> latencies(ToLongFunction<LatencyHistogram> f) {
+        Map<String, Long> ret = new TreeMap<>();
+        histograms.forEach((name, histogram) -> ret.put(name, f.applyAsLong(histogram)));
+        return ret;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : getCounters().entrySet()) {
+            sb.append(String.format("%-24s %14d%n", e.getKey(), e.getValue()));
+        }
+        sb.append(String.format("%n%-24s %10s %10s %10s %10s %10s%n", "operation (us)", "count", "mean", "p50", "p99", "max"));
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            if (h.getCount() == 0) {
+                continue;
+            }
+            sb.append(String.format("%-24s %10d %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), h.getCount(),
+                    h.getMean() / 1000, h.getPercentile(50) / 1000.0, h.getPercentile(99) / 1000.0, h.getMax() / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(LatencyHistogram::reset);
+        resetListeners.forEach(Runnable::run);
+    }
+}
@@ -0,0 +1,25 @@
+package com.maoyachen.sfs;
+
+import java.util.Map;
+
+/**
+ * 通过 JMX 发布的运行指标,延迟单位为纳秒
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getLatencyP50();
+
+    Map<String, Long> getLatencyP99();
+
+    Map<String, Long> getLatencyMax();
+
+    /**
+     * @return 与 stats 命令相同的文本报表
+     */
+    String getReport();
+
+    void reset();
+}
@@ -1,323 +1,3363 @@
 package com.maoyachen.sfs;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 
+/**
+ * 线程安全,锁的获取顺序为:
+ * <pre>
+ * fsLock -> 目录 inode 锁 -> 文件 inode 锁 -> inode / 数据块分配锁 -> inode 块锁 -> 块缓存段锁
+ * </pre>
+ * format, mount, fsck 和快照的创建删除持有 fsLock 的写锁,其余操作持有读锁;不同文件的读写只竞争各自的 inode 锁
+ * <p>
+ * 创建快照后数据块可能被多个快照和当前文件系统共用,由引用计数表记录,写入共用的块时先复制 (写时复制)
+ * <p>
+ * 压缩文件的文件块 0 为块组表,之后依次存放各组:
+ * <pre>
+ * 0 MAGIC NUMBER
+ * 4 组数
+ * 8 每组一个字节,为该组占用的块数,与组的原始块数相同时未压缩
+ * </pre>
+ * 写入时从第一个改动的组起重新压缩到文件末尾,写到新分配的块中,最后经日志更新块组表和 inode
+ * <p>
+ * 去重模式下写入普通文件的整块先按指纹在 {@link DedupIndex} 中查找,内容相同时改为指向已有的块,引用计数加一。
+ * 索引中的块与快照共用的块一样写时复制;只被一个文件引用的块原地写入前从索引中去掉
+ * <p>
+ * 分配组: 数据区按位图块分组,每组 blockSize * 8 块,inode 按编号平均分到各组,磁盘格式不变。
+ * 新文件的 inode 分配在父目录所在的组,新目录放在空闲块最多的组;文件的第一个 extent 从 inode 所在组中上次分配的位置查找,
+ * 之后的 extent 紧接文件末尾,不能紧接时从文件末尾向后查找
+ */
 public class SimpleFileSystem {
-    private final Disk disk;
+    private static final int HASH_DIR_MAGIC = 0x52494448;
+    private static final int HASH_DIR_MIN_BUCKETS = 4;
+    private static final int INODE_BLOCK_LOCKS = 64;
+    public static final int DEFAULT_INODES = 4096;
+    /**
+     * 每次复制或释放快照 inode 表的块数
+     */
+    private static final int SNAPSHOT_CHUNK = 16;
+    /**
+     * 整理碎片时每次读写的块数
+     */
+    private static final int DEFRAG_CHUNK = 256;
+    /**
+     * readdir 每批读取属性的目录项数
+     */
+    private static final int READDIR_BATCH = 256;
+    static final int COMPRESSED_MAGIC = 0x52504d43;
+    /**
+     * 压缩文件每组的逻辑块数,各组独立压缩,读写只涉及用到的组
+     */
+    static final int COMPRESS_CHUNK_BLOCKS = 16;
+
+    private final BlockCache disk;
+    private SuperBlock superBlock;
+    /**
+     * 格式化或挂载时从超级块中取得
+     */
+    private int blockSize = BlockDevice.DEFAULT_BLOCK_SIZE;
+    private int inodeSize = IndexNode.SIZE;
+    private int inodesPerBlock = BlockDevice.DEFAULT_BLOCK_SIZE / IndexNode.SIZE;
+    /**
+     * 数据块位图,第 i 位对应 dataStart + i 号块
+     */
     private BitSet bitMap;
-    private int inodeNum;
-    private int blockNum;
+    /**
+     * inode 位图
+     */
+    private BitSet inodeMap;
+    /**
+     * 下一次分配的起始搜索位置
+     */
+    private int blockHint;
+    /**
+     * 各分配组中下一次为新文件查找的起始位置,相对 dataStart
+     */
+    private int[] groupHints;
+    /**
+     * 常驻内存的 inode 表,按 inumber 索引,写穿到 inode 块
+     */
+    private AtomicReferenceArray<IndexNode> inodeTable;
+    /**
+     * inode 表的起始块,挂载快照时为快照中 inode 表的副本
+     */
+    private int inodeStart = 1;
+    /**
+     * 挂载的是快照,不允许修改
+     */
+    private boolean readOnly;
+    /**
+     * 数据块的引用计数,第 i 项对应 dataStart + i 号块,按无符号 16 位解释。
+     * 没有引用计数表时为 null,位图中已分配的块只属于一个文件
+     */
+    private short[] refcounts;
+    /**
+     * 写入的整块的指纹索引,未开启去重时为 null。由 blockAllocLock 保护
+     */
+    private DedupIndex dedup;
+    private final DentryCache dentries = new DentryCache(DentryCache.DEFAULT_CAPACITY);
+    /**
+     * 元数据日志,旧版本磁盘没有日志时为 null
+     */
+    private Journal journal;
+    /**
+     * 已释放但在下次检查点之前不能重新分配的数据块,这些块在日志中还有旧内容,重放时会被覆盖
+     */
+    private final BitSet deferredFree = new BitSet();
+    /**
+     * 各 inode 上已发出但未完成的异步读写数,释放文件的块之前须等待归零
+     */
+    private AtomicIntegerArray asyncIo = new AtomicIntegerArray(0);
+    private final AtomicInteger asyncIoTotal = new AtomicInteger();
+    private final Object asyncIoDone = new Object();
+
+    private final ReentrantReadWriteLock fsLock = new ReentrantReadWriteLock();
+    /**
+     * 每个 inode 一把读写锁,保护 inode 本身和文件内容
+     */
+    private ReentrantReadWriteLock[] inodeLocks;
+    /**
+     * 保护 inodeMap 和 inode 位图块
+     */
+    private final Object inodeAllocLock = new Object();
+    /**
+     * 保护 bitMap / blockHint / groupHints 和数据块位图块
+     */
+    private final Object blockAllocLock = new Object();
+    /**
+     * 按 inode 块号分段,保护对 inode 块的先读后写
+     */
+    private final Object[] inodeBlockLocks = new Object[INODE_BLOCK_LOCKS];
+    private final Metrics metrics = new Metrics();
 
-    public SimpleFileSystem(Disk disk) {
-        this.disk = disk;
+    public SimpleFileSystem(BlockDevice disk) {
+        this(disk, BlockCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param cacheCapacity 块缓存容量(块数)
+     */
+    public SimpleFileSystem(BlockDevice disk, int cacheCapacity) {
+        this.disk = new BlockCache(new InstrumentedDevice(disk, metrics), cacheCapacity);
+        metrics.gauge("cache.hits", this.disk::getHits);
+        metrics.gauge("cache.misses", this.disk::getMisses);
+        metrics.gauge("dentry.hits", dentries::getHits);
+        metrics.gauge("dentry.negative.hits", dentries::getNegativeHits);
+        metrics.gauge("dentry.misses", dentries::getMisses);
+        metrics.gauge("dedup.index.entries", () -> {
+            synchronized (blockAllocLock) {
+                return dedup == null ? 0 : dedup.getLiveCount();
+            }
+        });
+        metrics.gauge("dedup.index.bytes", () -> {
+            synchronized (blockAllocLock) {
+                return dedup == null ? 0 : dedup.getMemoryBytes();
+            }
+        });
+        metrics.onReset(this.disk::resetStats);
+        metrics.onReset(dentries::resetStats);
+        for (int i = 0; i < INODE_BLOCK_LOCKS; i++) {
+            inodeBlockLocks[i] = new Object();
+        }
     }
 
     /**
-     * 格式化磁盘
+     * 以当前的块大小、inode 数和 inode 大小格式化磁盘,
+     * 未格式化或挂载过时使用 512 字节的块和 {@link #DEFAULT_INODES} 个 {@link IndexNode#DEFAULT_SIZE} 字节的 inode
      */
     public void format() {
-        disk.clear();
-        byte[] superBlock = emptyBlock();
-        superBlock[0] = (byte) 0xf0;
-        superBlock[1] = (byte) 0xf0;
-        superBlock[2] = (byte) 0x34;
-        superBlock[3] = (byte) 0x10;
+        SuperBlock sb = superBlock;
+        if (sb == null) {
+            format(BlockDevice.DEFAULT_BLOCK_SIZE, DEFAULT_INODES);
+        } else {
+            format(sb.getBlockSize(), sb.getInodeCount(), sb.getInodeSize());
+        }
+    }
+
+    /**
+     * 使用 {@link IndexNode#DEFAULT_SIZE} 字节的 inode 格式化磁盘,块大小小于 inode 大小时 inode 与块一样大
+     */
+    public boolean format(int blockSize, int inodeCount) {
+        return format(blockSize, inodeCount, Math.min(IndexNode.DEFAULT_SIZE, blockSize));
+    }
+
+    /**
+     * 格式化磁盘,格式化后无需重新挂载。磁盘大小由块设备决定。
+     * 只清零超级块、inode 块和位图,数据块不清零: 读取不会超过文件大小,扩展文件时补零
+     *
+     * @param blockSize  块大小,512 到 64K 之间 2 的幂
+     * @param inodeCount inode 数,向上取整到整块
+     * @param inodeSize  inode 大小,32 到块大小之间 2 的幂,不超过 inode 大小减 8 字节的文件内联保存在 inode 中
+     * @return 参数不合法、磁盘太小或挂载的是快照时返回 false,磁盘不变
+     */
+    public boolean format(int blockSize, int inodeCount, int inodeSize) {
+        if (!BlockDevice.isValidBlockSize(blockSize) || inodeCount <= 0 || !IndexNode.isValidSize(inodeSize, blockSize)) {
+            return false;
+        }
+        long totalBlocks = disk.getSize() / blockSize;
+        if (totalBlocks > Integer.MAX_VALUE) {
+            return false;
+        }
+        SuperBlock sb = SuperBlock.layout(disk.getSize(), blockSize, inodeCount, inodeSize, journalBlocks((int) totalBlocks));
+        if (sb.getDataBlocks() <= 0) {
+            return false;
+        }
+        long start = System.nanoTime();
+        fsLock.writeLock().lock();
+        try {
+            if (readOnly) {
+                return false;
+            }
+            awaitAsync();
+            disk.setBlockSize(blockSize);
+            disk.zero(0, sb.getJournalStart());
+            superBlock = sb;
+            this.blockSize = blockSize;
+            this.inodeSize = inodeSize;
+            inodesPerBlock = blockSize / inodeSize;
+            inodeStart = 1;
+            refcounts = null;
+            dedup = null;
+            disk.write(0, superBlock.toBytes());
+            journal = Journal.create(disk, superBlock.getJournalStart(), superBlock.getJournalBlocks());
+            journal.setCheckpointListener(this::releaseDeferred);
+
+            bitMap = new BitSet(superBlock.getDataBlocks());
+            inodeMap = new BitSet(superBlock.getInodeCount());
+            blockHint = 0;
+            resetGroups();
+            resetInodes(superBlock.getInodeCount());
+
+            IndexNode rootInode = new IndexNode();
+            initInode(rootInode, (byte) 1);
+            markInode(0, true);
+            saveInode(0, rootInode);
+            journal.checkpointNow();
+            return true;
+        } finally {
+            fsLock.writeLock().unlock();
+            metrics.record("format", start);
+        }
+    }
+
+    /**
+     * 日志区约占磁盘的十分之一,至少 64 块,最多 16384 块,且不超过磁盘的四分之一
+     */
+    private static int journalBlocks(int totalBlocks) {
+        return Math.min(Math.min(Math.max(totalBlocks / 10, 64), 16384), totalBlocks / 4);
+    }
+
+    private void resetInodes(int count) {
+        deferredFree.clear();
+        inodeTable = new AtomicReferenceArray<>(count);
+        inodeLocks = new ReentrantReadWriteLock[count];
+        for (int i = 0; i < count; i++) {
+            inodeLocks[i] = new ReentrantReadWriteLock();
+        }
+        asyncIo = new AtomicIntegerArray(count);
+        dentries.clear();
+    }
+
+    /**
+     * 挂载磁盘
+     *
+     * @throws Exception 挂载失败错误
+     */
+    public void mount() throws Exception {
+        long start = System.nanoTime();
+        fsLock.writeLock().lock();
+        try {
+            awaitAsync();
+            load();
+        } finally {
+            fsLock.writeLock().unlock();
+            metrics.record("mount", start);
+        }
+    }
+
+    /**
+     * 以只读方式挂载快照。不重放日志,快照中的块在快照删除之前不会被修改,
+     * 因此可以在另一个进程使用该磁盘时挂载,用于一致的备份
+     *
+     * @throws Exception 快照不存在或挂载失败
+     */
+    public void mount(String snapshot) throws Exception {
+        long start = System.nanoTime();
+        fsLock.writeLock().lock();
+        try {
+            awaitAsync();
+            SuperBlock sb = readSuperBlock();
+            journal = null;
+            refcounts = null;
+            dedup = null;
+            readOnly = true;
+            int slot = sb.hasRefcounts() && !snapshot.isEmpty() ? findSnapshot(readSnapshotTable(), snapshot) : -1;
+            if (slot == -1) {
+                throw new Exception("挂载失败,快照 " + snapshot + " 不存在");
+            }
+            inodeStart = Util.getInt(readSnapshotTable(), slot + 28);
+        } finally {
+            fsLock.writeLock().unlock();
+            metrics.record("mount", start);
+        }
+    }
+
+    /**
+     * 读出并检查超级块,按其中的块大小设置块设备,清空内存中的 inode 表
+     */
+    private SuperBlock readSuperBlock() throws Exception {
+        // 超级块的字段都在前 512 字节,先按最小的块大小读出
+        disk.setBlockSize(BlockDevice.DEFAULT_BLOCK_SIZE);
+        byte[] block = new byte[BlockDevice.DEFAULT_BLOCK_SIZE];
+        disk.read(0, block);
+        SuperBlock sb = SuperBlock.fromBytes(block);
+        // 比较 MAGIC NUMBER
+        if (!sb.isValid()) {
+            throw new Exception("挂载失败,无法识别该磁盘的文件系统");
+        }
+        if ((long) sb.getTotalBlocks() * sb.getBlockSize() > disk.getSize()) {
+            throw new Exception("挂载失败,磁盘小于超级块中记录的大小");
+        }
+        disk.setBlockSize(sb.getBlockSize());
+        superBlock = sb;
+        blockSize = sb.getBlockSize();
+        inodeSize = sb.getInodeSize();
+        inodesPerBlock = blockSize / inodeSize;
+        blockHint = 0;
+        resetGroups();
+        resetInodes(sb.getInodeCount());
+        return sb;
+    }
+
+    private void load() throws Exception {
+        SuperBlock sb = readSuperBlock();
+        byte[] block = emptyBlock();
+        readOnly = false;
+        inodeStart = 1;
+        refcounts = null;
+        dedup = null;
+        journal = null;
+        if (sb.hasJournal()) {
+            // 先重放日志,之后读到的位图和 inode 才是一致的
+            journal = Journal.recover(disk, sb.getJournalStart(), sb.getJournalBlocks());
+            journal.setCheckpointListener(this::releaseDeferred);
+        }
+
+        if (sb.hasBitmaps()) {
+            // 顺序读入两张位图
+            inodeMap = readBitmap(sb.getInodeBitmapStart(), sb.getInodeBitmapBlocks());
+            bitMap = readBitmap(sb.getBlockBitmapStart(), sb.getBlockBitmapBlocks());
+            if (sb.hasRefcounts()) {
+                refcounts = readRefcounts();
+            }
+            if (sb.hasFeature(SuperBlock.FEATURE_DEDUP) && sb.getDedupBlocks() > 0 && refcounts != null && journal != null) {
+                dedup = readDedupIndex();
+            }
+            return;
+        }
+
+        // 旧版本磁盘没有位图,扫描所有 inode 恢复,同时预热 inode 表
+        bitMap = new BitSet(sb.getDataBlocks());
+        inodeMap = new BitSet(sb.getInodeCount());
+        for (int i = 1; i < sb.getInodeBlocks() + 1; i++) {
+            disk.read(i, block);
+            // 遍历所有 inode
+            for (int j = 0; j < inodesPerBlock; j++) {
+                if (block[j * inodeSize] == 1) {
+                    int inumber = (i - 1) * inodesPerBlock + j;
+                    IndexNode inode = new IndexNode();
+                    inode.decode(block, j * inodeSize, inodeSize);
+                    inodeTable.set(inumber, inode);
+                    inodeMap.set(inumber);
+                    for (int k = 0; k < inode.getExtentCount(); k++) {
+                        int blockIndex = inode.getExtentStart(k);
+                        bitMap.set(blockIndex - sb.getDataStart(), blockIndex - sb.getDataStart() + inode.getExtentLength(k));
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 提交日志并将缓存中的脏块写回磁盘、持久化,此前发出的异步读写先完成。
+     * 多个线程同时调用时,已被其他线程的提交包含的修改不再重复提交
+     */
+    public void sync() {
+        long start = System.nanoTime();
+        fsLock.readLock().lock();
+        try {
+            awaitAsync();
+            flushDedup();
+            if (journal != null) {
+                journal.commit(journal.getSequence());
+            }
+            disk.sync();
+        } finally {
+            fsLock.readLock().unlock();
+            metrics.record("sync", start);
+        }
+    }
 
-        // 256 个 inode blocks
-        superBlock[4] = (byte) 0x00;
-        superBlock[5] = (byte) 0x01;
-        superBlock[6] = (byte) 0x00;
-        superBlock[7] = (byte) 0x00;
+    public SuperBlock getSuperBlock() {
+        return superBlock;
+    }
+
+    public DentryCache getDentryCache() {
+        return dentries;
+    }
+
+    /**
+     * 各操作的延迟、块设备请求和分配器的统计
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 同步并关闭底层设备
+     */
+    public void close() {
+        fsLock.writeLock().lock();
+        try {
+            awaitAsync();
+            flushDedup();
+            if (journal != null) {
+                journal.checkpointNow();
+            }
+            disk.close();
+        } finally {
+            fsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 检查文件系统的一致性,检查期间不允许其他操作
+     *
+     * @param repair      是否修复: 删除无效和多余的目录项,删除孤立 inode,
+     *                    从第一个无效或共用的块处截断文件,按实际使用情况重写位图
+     * @param parallelism 并行扫描的线程数
+     * @return 检查结果,根目录损坏时不修复;挂载的是快照时返回 null
+     */
+    public Fsck.Report fsck(boolean repair, int parallelism) {
+        fsLock.writeLock().lock();
+        try {
+            if (readOnly) {
+                return null;
+            }
+            awaitAsync();
+            // 修复后重新挂载时从磁盘读入索引
+            flushDedup();
+            if (journal != null) {
+                journal.checkpointNow();
+            }
+            Fsck.Report report = new Fsck(disk, superBlock, parallelism).run();
+            if (!repair || report.isClean() || report.isRootBroken()) {
+                return report;
+            }
+            for (Map.Entry<Integer, Integer> e : report.truncations.entrySet()) {
+                begin();
+                cutInode(e.getKey(), report.inodes[e.getKey()], e.getValue());
+                end();
+            }
+            for (Map.Entry<Integer, String> e : report.badEntries) {
+                begin();
+                removeEntry(e.getKey(), e.getValue());
+                end();
+            }
+            for (int inumber : report.orphans) {
+                // 块不单独释放,最后统一重写位图
+                begin();
+                deleteInode(inumber);
+                end();
+            }
+            if (journal != null) {
+                journal.checkpointNow();
+            }
+            if (superBlock.hasBitmaps()) {
+                Fsck.Report after = new Fsck(disk, superBlock, parallelism).run();
+                writeBitmap(after.usedInodes, superBlock.getInodeBitmapStart(), superBlock.getInodeBitmapBlocks());
+                writeBitmap(after.owned, superBlock.getBlockBitmapStart(), superBlock.getBlockBitmapBlocks());
+                if (after.refcounts != null) {
+                    synchronized (blockAllocLock) {
+                        for (int i = 0; i < refcounts.length; i++) {
+                            refcounts[i] = (short) after.refcounts[i];
+                        }
+                    }
+                    writeAllRefcounts();
+                }
+            }
+            if (journal != null) {
+                journal.checkpointNow();
+            }
+            try {
+                load();
+            } catch (Exception e) {
+                throw new IllegalStateException("修复后重新挂载失败", e);
+            }
+            report.repaired = true;
+            return report;
+        } finally {
+            fsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 只保留文件的前 keep 块,大小不超过保留的块或内联的内容,压缩文件不保留。去掉的块不释放,可能仍属于其他文件
+     *
+     * @param inode 检查时读出的 inode,无效的间接块已去掉
+     */
+    private void cutInode(int inumber, IndexNode inode, int keep) {
+        if (inode.hasFlag(IndexNode.FLAG_COMPRESSED) && !inode.isInlineData()) {
+            // 截断后块组表与各组对不上,压缩文件整个清空
+            keep = 0;
+        }
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            int length = inode.getExtentLength(e);
+            if (logical + length > keep) {
+                int kept = keep - logical;
+                if (kept > 0) {
+                    inode.truncateExtents(e + 1, kept);
+                } else {
+                    inode.truncateExtents(e, e > 0 ? inode.getExtentLength(e - 1) : 0);
+                }
+                break;
+            }
+            logical += length;
+        }
+        if (inode.getExtentCount() > IndexNode.INLINE_EXTENTS && inode.getIndirect() == 0) {
+            // 旧版本 inode 转换后没有间接块,修复时位图不可信,不分配新块,只保留 inode 中的 extent
+            inode.truncateExtents(IndexNode.INLINE_EXTENTS, inode.getExtentLength(IndexNode.INLINE_EXTENTS - 1));
+            keep = inode.getBlockCount();
+        }
+        if (inode.getExtentCount() <= IndexNode.INLINE_EXTENTS) {
+            // 间接块无效或被其他文件共用,不经 saveInode 释放
+            inode.setIndirect(0);
+        }
+        int limit = inode.isInlineData() ? inode.getInlineData().length : keep * blockSize;
+        if (inode.getSize() < 0 || inode.getSize() > limit) {
+            inode.setSize(Math.max(0, Math.min(inode.getSize(), limit)));
+        }
+        saveInode(inumber, inode);
+    }
+
+    /**
+     * @return 所有文件和目录的碎片统计,挂载的是快照时返回 null
+     */
+    public Fragmentation fragmentation() {
+        fsLock.readLock().lock();
+        try {
+            if (readOnly) {
+                return null;
+            }
+            BitSet used;
+            synchronized (inodeAllocLock) {
+                used = (BitSet) inodeMap.clone();
+            }
+            Fragmentation ret = new Fragmentation();
+            for (int i = used.nextSetBit(0); i >= 0 && i < superBlock.getInodeCount(); i = used.nextSetBit(i + 1)) {
+                ReentrantReadWriteLock.ReadLock lock = inodeLocks[i].readLock();
+                lock.lock();
+                try {
+                    IndexNode inode = getInode(i);
+                    if (inode.getValid() != 0 && !inode.isInlineData()) {
+                        ret.add(inode);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return ret;
+        } finally {
+            fsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在线整理碎片: 把分成多段的文件和目录逐个搬到 inode 所在分配组附近新分配的连续块中,再释放原来的块。
+     * 每个文件一个事务,只持有该文件的写锁,其他文件照常读写。
+     * 有块与快照或其他文件共用的文件不搬,以免复制共用的块;找不到足够长的连续空闲段时跳过
+     *
+     * @return 搬动的文件数,挂载的是快照时返回 -1
+     */
+    public int defrag() {
+        long start = System.nanoTime();
+        fsLock.readLock().lock();
+        try {
+            if (readOnly) {
+                return -1;
+            }
+            BitSet used;
+            synchronized (inodeAllocLock) {
+                used = (BitSet) inodeMap.clone();
+            }
+            int moved = 0;
+            for (int i = used.nextSetBit(0); i >= 0 && i < superBlock.getInodeCount(); i = used.nextSetBit(i + 1)) {
+                begin();
+                ReentrantReadWriteLock.WriteLock lock = inodeLocks[i].writeLock();
+                lock.lock();
+                try {
+                    if (relocate(i)) {
+                        moved++;
+                    }
+                } finally {
+                    lock.unlock();
+                    end();
+                }
+            }
+            metrics.add("defrag.files", moved);
+            return moved;
+        } finally {
+            fsLock.readLock().unlock();
+            metrics.record("defrag", start);
+        }
+    }
+
+    /**
+     * 把文件的所有块复制到一段新分配的连续块中。普通文件的数据先写回磁盘,再在事务中更新 inode 和位图,
+     * 中途崩溃时文件仍指向原来的块
+     *
+     * @return 文件不需要或不能搬动时返回 false,文件不变
+     */
+    private boolean relocate(int inumber) {
+        IndexNode inode = getInode(inumber);
+        if (inode.getValid() == 0 || inode.isInlineData() || Fragmentation.fragments(inode) < 2) {
+            return false;
+        }
+        int count = inode.getBlockCount();
+        boolean logged = inode.isDir() && journal != null;
+        if (logged && count > journal.getMaxOperationBlocks()) {
+            // 目录块逐块记入日志,整个目录须能放进一个事务
+            metrics.add("defrag.skipped", 1);
+            return false;
+        }
+        awaitAsync(inumber);
+        int target;
+        synchronized (blockAllocLock) {
+            for (int e = 0; e < inode.getExtentCount(); e++) {
+                for (int k = 0; k < inode.getExtentLength(e); k++) {
+                    if (refcounts != null && refcount(inode.getExtentStart(e) + k - superBlock.getDataStart()) > 1) {
+                        return false;
+                    }
+                }
+            }
+            target = allocRun(groupHints[groupOf(inumber)], count);
+        }
+        if (target == -1) {
+            metrics.add("defrag.skipped", 1);
+            return false;
+        }
+        byte[] buffer = new byte[Math.min(count, DEFRAG_CHUNK) * blockSize];
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            for (int k = 0; k < inode.getExtentLength(e); ) {
+                int n = Math.min(inode.getExtentLength(e) - k, DEFRAG_CHUNK);
+                disk.read(inode.getExtentStart(e) + k, buffer, 0, n);
+                if (logged) {
+                    // 目录块属于元数据,逐块记入日志
+                    for (int b = 0; b < n; b++) {
+                        writeMeta(target + logical + b, Arrays.copyOfRange(buffer, b * blockSize, (b + 1) * blockSize));
+                    }
+                } else {
+                    disk.write(target + logical, buffer, 0, n);
+                }
+                k += n;
+                logical += n;
+            }
+        }
+        if (!logged) {
+            disk.sync();
+        }
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            markBlocks(inode.getExtentStart(e), inode.getExtentLength(e), false);
+        }
+        inode.clearExtents();
+        addRun(inode, target, count);
+        saveInode(inumber, inode);
+        metrics.add("defrag.blocks", count);
+        return true;
+    }
+
+    /**
+     * 创建名为 name 的快照,记录此刻所有文件的内容。只复制 inode 表和间接 extent 块,
+     * 数据块和目录块与快照共用,引用计数加一,之后的写入只复制写到的共用块。
+     * 第一次创建快照时从数据区分配引用计数表和快照表。快照表项最后写入,中途崩溃只会泄漏空间,可由 fsck 修复
+     *
+     * @param name 不超过 28 个字节
+     * @return 同名快照已存在、快照表已满、空间不足、磁盘没有位图或挂载的是快照时返回 false
+     */
+    public boolean createSnapshot(String name) {
+        if (name.isEmpty() || name.length() > 28) {
+            return false;
+        }
+        long start = System.nanoTime();
+        fsLock.writeLock().lock();
+        try {
+            if (readOnly || !superBlock.hasBitmaps()) {
+                return false;
+            }
+            awaitAsync();
+            checkpoint();
+            if (refcounts == null && !enableRefcounts()) {
+                return false;
+            }
+            byte[] table = readSnapshotTable();
+            int slot = findSnapshot(table, "");
+            if (slot == -1 || findSnapshot(table, name) != -1) {
+                return false;
+            }
+            int copy = copyInodeTable();
+            if (copy == -1) {
+                return false;
+            }
+            // inode 表的副本先写回磁盘,再写入表项
+            checkpoint();
+            System.arraycopy(name.getBytes(StandardCharsets.US_ASCII), 0, table, slot, name.length());
+            Util.putInt(table, slot + 28, copy);
+            begin();
+            writeMeta(superBlock.getSnapshotTable(), table);
+            end();
+            checkpoint();
+            return true;
+        } finally {
+            fsLock.writeLock().unlock();
+            metrics.record("snapshot", start);
+        }
+    }
+
+    /**
+     * 删除快照,释放只被该快照引用的块。先删除快照表项,中途崩溃只会泄漏空间
+     *
+     * @return 快照不存在或挂载的是快照时返回 false
+     */
+    public boolean deleteSnapshot(String name) {
+        long start = System.nanoTime();
+        fsLock.writeLock().lock();
+        try {
+            if (readOnly || refcounts == null || name.isEmpty()) {
+                return false;
+            }
+            byte[] table = readSnapshotTable();
+            int slot = findSnapshot(table, name);
+            if (slot == -1) {
+                return false;
+            }
+            int copy = Util.getInt(table, slot + 28);
+            Arrays.fill(table, slot, slot + 32, (byte) 0);
+            begin();
+            writeMeta(superBlock.getSnapshotTable(), table);
+            end();
+            releaseInodeTable(copy);
+            checkpoint();
+            return true;
+        } finally {
+            fsLock.writeLock().unlock();
+            metrics.record("snapshot.delete", start);
+        }
+    }
 
-        int dataBlockNum = disk.getSize() / 512 - 256 - 1;
-        byte[] dataBlockNumBytes = Util.intToBytes(dataBlockNum);
+    /**
+     * @return 所有快照的名称
+     */
+    public String[] listSnapshots() {
+        fsLock.readLock().lock();
+        try {
+            if (superBlock == null || !superBlock.hasRefcounts()) {
+                return new String[0];
+            }
+            byte[] table = readSnapshotTable();
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < table.length; i += 32) {
+                if (table[i] != 0) {
+                    names.add(Util.buildString(table, i, 28));
+                }
+            }
+            return names.toArray(new String[0]);
+        } finally {
+            fsLock.readLock().unlock();
+        }
+    }
 
-        System.arraycopy(dataBlockNumBytes, 0, superBlock, 8, 4);
-        IndexNode rootInode = new IndexNode();
+    /**
+     * 快照表占一个块,每项 32 字节: 名称 (不超过 28 字节) + 快照中 inode 表副本的起始块,名称首字节为 0 的项为空
+     */
+    private byte[] readSnapshotTable() {
+        byte[] table = emptyBlock();
+        disk.read(superBlock.getSnapshotTable(), table);
+        return table;
+    }
 
-        initInode(rootInode, (byte) 1);
-        saveInode(0, rootInode);
+    /**
+     * @return name 在快照表中的偏移,不存在时返回 -1;name 为空串时返回第一个空项
+     */
+    private static int findSnapshot(byte[] table, String name) {
+        for (int i = 0; i < table.length; i += 32) {
+            if (nameEquals(table, i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 提交日志并把所有脏块写回磁盘
+     */
+    private void checkpoint() {
+        if (journal != null) {
+            journal.checkpointNow();
+        } else {
+            disk.sync();
+        }
+    }
+
+    /**
+     * 从数据区分配引用计数表和紧随其后的快照表,已分配的块引用计数为 1。
+     * 超级块最后写入,调用者需持有 fsLock 的写锁
+     *
+     * @return 空间不足时返回 false
+     */
+    private boolean enableRefcounts() {
+        int blocks = (superBlock.getDataBlocks() * 2 + blockSize - 1) / blockSize;
+        int start;
+        begin();
+        try {
+            start = allocRun(blocks + 1);
+            if (start != -1) {
+                writeMeta(start + blocks, emptyBlock());
+            }
+        } finally {
+            end();
+        }
+        if (start == -1) {
+            return false;
+        }
+        synchronized (blockAllocLock) {
+            refcounts = new short[superBlock.getDataBlocks()];
+            for (int i = bitMap.nextSetBit(0); i >= 0 && i < refcounts.length; i = bitMap.nextSetBit(i + 1)) {
+                refcounts[i] = 1;
+            }
+        }
+        superBlock.setRefcounts(start, blocks, start + blocks);
+        writeAllRefcounts();
+        begin();
+        writeMeta(0, superBlock.toBytes());
+        end();
+        return true;
+    }
+
+    /**
+     * 逐块写入整个引用计数表,每块一个事务,调用者需持有 fsLock 的写锁
+     */
+    private void writeAllRefcounts() {
+        int perBlock = blockSize / 2;
+        for (int from = 0; from < refcounts.length; from += perBlock) {
+            begin();
+            synchronized (blockAllocLock) {
+                writeRefcounts(from, Math.min(refcounts.length, from + perBlock));
+            }
+            end();
+        }
+    }
+
+    /**
+     * 从数据区分配去重索引并清零,超级块由调用者写入。调用者需持有 fsLock 的写锁
+     *
+     * @return 空间不足时返回 false
+     */
+    private boolean allocDedupIndex() {
+        int blocks = DedupIndex.blocksFor(DedupIndex.capacityFor(superBlock.getDataBlocks()), blockSize);
+        begin();
+        int start = allocRun(blocks);
+        end();
+        if (start == -1) {
+            return false;
+        }
+        disk.zero(start, blocks);
+        superBlock.setDedupIndex(start, blocks);
+        return true;
+    }
+
+    /**
+     * 读入磁盘上的去重索引。索引不经日志,可能落后于文件内容,只有当前属于普通文件的块有效,共用前比较内容
+     */
+    private DedupIndex readDedupIndex() {
+        int count = superBlock.getDedupBlocks();
+        byte[] bytes = new byte[count * blockSize];
+        disk.read(superBlock.getDedupStart(), bytes, 0, count);
+        BitSet files = new BitSet(superBlock.getDataBlocks());
+        for (int i = inodeMap.nextSetBit(0); i >= 0 && i < superBlock.getInodeCount(); i = inodeMap.nextSetBit(i + 1)) {
+            IndexNode inode = getInode(i);
+            if (inode.getValid() == 0 || inode.isDir() || inode.isInlineData() || inode.hasFlag(IndexNode.FLAG_COMPRESSED)) {
+                continue;
+            }
+            for (int e = 0; e < inode.getExtentCount(); e++) {
+                int from = inode.getExtentStart(e) - superBlock.getDataStart();
+                files.set(from, from + inode.getExtentLength(e));
+            }
+        }
+        DedupIndex index = new DedupIndex(DedupIndex.capacityFor(superBlock.getDataBlocks()), superBlock.getDataStart(), blockSize);
+        index.load(bytes, files);
+        return index;
+    }
+
+    /**
+     * 把去重索引中修改过的块直接写入磁盘
+     */
+    private void flushDedup() {
+        if (dedup == null) {
+            return;
+        }
+        byte[] block = emptyBlock();
+        while (true) {
+            int i;
+            synchronized (blockAllocLock) {
+                i = dedup.nextDirty(0);
+                if (i == -1) {
+                    return;
+                }
+                dedup.encode(i, block);
+            }
+            disk.write(superBlock.getDedupStart() + i, block);
+        }
+    }
+
+    /**
+     * 把 inode 表复制到新分配的连续块,有间接 extent 块的 inode 在副本中指向间接块的副本,
+     * 文件的数据块引用计数加一。调用者需持有 fsLock 的写锁
+     *
+     * @return 副本的起始块,空间不足时返回 -1,不分配任何块
+     */
+    private int copyInodeTable() {
+        int count = superBlock.getInodeBlocks();
+        byte[] blocks = new byte[SNAPSHOT_CHUNK * blockSize];
+        IndexNode inode = new IndexNode();
+        // 先数出要复制的间接块,之后的分配不会失败
+        int indirects = 0;
+        for (int from = 0; from < count; from += SNAPSHOT_CHUNK) {
+            int n = Math.min(SNAPSHOT_CHUNK, count - from);
+            disk.read(1 + from, blocks, 0, n);
+            for (int offset = 0; offset < n * blockSize; offset += inodeSize) {
+                if (blocks[offset] == 1) {
+                    inode.decode(blocks, offset, inodeSize);
+                    indirects += inode.getIndirect() != 0 ? 1 : 0;
+                }
+            }
+        }
+        int copy;
+        begin();
+        try {
+            synchronized (blockAllocLock) {
+                if (superBlock.getDataBlocks() - bitMap.cardinality() < count + indirects) {
+                    return -1;
+                }
+                copy = allocRun(count);
+            }
+        } finally {
+            end();
+        }
+        if (copy == -1) {
+            return -1;
+        }
+        int perBlock = blockSize / 2;
+        // 修改过的引用计数表块
+        BitSet dirty = new BitSet();
+        byte[] block = emptyBlock();
+        for (int from = 0; from < count; from += SNAPSHOT_CHUNK) {
+            int n = Math.min(SNAPSHOT_CHUNK, count - from);
+            disk.read(1 + from, blocks, 0, n);
+            for (int offset = 0; offset < n * blockSize; offset += inodeSize) {
+                if (blocks[offset] != 1) {
+                    continue;
+                }
+                inode.decode(blocks, offset, inodeSize);
+                if (inode.getIndirect() != 0) {
+                    begin();
+                    int indirect = allocDataBlock();
+                    end();
+                    disk.read(inode.getIndirect(), block);
+                    inode.decodeIndirect(block);
+                    disk.write(indirect, block);
+                    Util.putInt(blocks, offset + 28, indirect);
+                }
+                synchronized (blockAllocLock) {
+                    for (int e = 0; e < inode.getExtentCount(); e++) {
+                        int index = inode.getExtentStart(e) - superBlock.getDataStart();
+                        int length = inode.getExtentLength(e);
+                        if (index < 0 || index + length > refcounts.length) {
+                            // 损坏的 extent 留给 fsck
+                            continue;
+                        }
+                        for (int i = index; i < index + length; i++) {
+                            refcounts[i]++;
+                        }
+                        dirty.set(index / perBlock, (index + length - 1) / perBlock + 1);
+                    }
+                }
+            }
+            disk.write(copy + from, blocks, 0, n);
+        }
+        for (int b = dirty.nextSetBit(0); b >= 0; b = dirty.nextSetBit(b + 1)) {
+            begin();
+            synchronized (blockAllocLock) {
+                writeRefcounts(b * perBlock, Math.min(refcounts.length, (b + 1) * perBlock));
+            }
+            end();
+        }
+        return copy;
+    }
+
+    /**
+     * 释放快照中 inode 表的副本和其中的间接块副本,各文件的数据块引用计数减一,降为 0 的块被释放
+     */
+    private void releaseInodeTable(int copy) {
+        int count = superBlock.getInodeBlocks();
+        byte[] blocks = new byte[SNAPSHOT_CHUNK * blockSize];
+        byte[] block = emptyBlock();
+        for (int from = 0; from < count; from += SNAPSHOT_CHUNK) {
+            int n = Math.min(SNAPSHOT_CHUNK, count - from);
+            disk.read(copy + from, blocks, 0, n);
+            for (int offset = 0; offset < n * blockSize; offset += inodeSize) {
+                if (blocks[offset] != 1) {
+                    continue;
+                }
+                IndexNode inode = new IndexNode();
+                inode.decode(blocks, offset, inodeSize);
+                if (inode.getIndirect() != 0) {
+                    disk.read(inode.getIndirect(), block);
+                    inode.decodeIndirect(block);
+                }
+                begin();
+                freeBlocks(inode);
+                end();
+            }
+        }
+        begin();
+        markBlocks(copy, count, false);
+        end();
+    }
+
+    /**
+     * 用 bits 整体重写磁盘上的位图
+     */
+    private void writeBitmap(BitSet bits, int start, int count) {
+        byte[] bytes = Arrays.copyOf(bits.toByteArray(), count * blockSize);
+        byte[] block = emptyBlock();
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(bytes, i * blockSize, block, 0, blockSize);
+            begin();
+            writeMeta(start + i, block);
+            end();
+        }
+    }
+
+    private BitSet readBitmap(int start, int count) {
+        byte[] bytes = new byte[count * blockSize];
+        byte[] block = emptyBlock();
+        for (int i = 0; i < count; i++) {
+            disk.read(start + i, block);
+            System.arraycopy(block, 0, bytes, i * blockSize, blockSize);
+        }
+        return BitSet.valueOf(bytes);
+    }
+
+    /**
+     * 修改位图中的一位,并同步到磁盘上的位图块
+     */
+    private void updateBitmap(BitSet bitmap, int start, int index, boolean used) {
+        bitmap.set(index, used);
+        if (!superBlock.hasBitmaps()) {
+            return;
+        }
+        int bits = blockSize * 8;
+        int blockIndex = start + index / bits;
+        int byteOffset = index % bits / 8;
+        byte[] block = emptyBlock();
+        disk.read(blockIndex, block);
+        if (used) {
+            block[byteOffset] |= (byte) (1 << (index % 8));
+        } else {
+            block[byteOffset] &= (byte) ~(1 << (index % 8));
+        }
+        writeMeta(blockIndex, block);
+    }
+
+    /**
+     * 修改位图中连续的 count 位,每个位图块只读写一次
+     */
+    private void updateBitmap(BitSet bitmap, int start, int index, int count, boolean used) {
+        bitmap.set(index, index + count, used);
+        if (!superBlock.hasBitmaps()) {
+            return;
+        }
+        byte[] block = emptyBlock();
+        int bits = blockSize * 8;
+        int i = index;
+        while (i < index + count) {
+            int blockIndex = start + i / bits;
+            int blockEnd = Math.min(index + count, (i / bits + 1) * bits);
+            disk.read(blockIndex, block);
+            for (; i < blockEnd; i++) {
+                int byteOffset = i % bits / 8;
+                if (used) {
+                    block[byteOffset] |= (byte) (1 << (i % 8));
+                } else {
+                    block[byteOffset] &= (byte) ~(1 << (i % 8));
+                }
+            }
+            writeMeta(blockIndex, block);
+        }
+    }
+
+    private void markInode(int inumber, boolean used) {
+        synchronized (inodeAllocLock) {
+            updateBitmap(inodeMap, superBlock.getInodeBitmapStart(), inumber, used);
+        }
+    }
+
+    private void markBlock(int blockIndex, boolean used) {
+        markBlocks(blockIndex, 1, used);
+    }
+
+    /**
+     * 分配时引用计数置为 1;释放时引用计数减一,只释放降为 0 的块
+     */
+    private void markBlocks(int blockIndex, int count, boolean used) {
+        synchronized (blockAllocLock) {
+            if (refcounts == null) {
+                setBlocks(blockIndex, count, used);
+                return;
+            }
+            int index = blockIndex - superBlock.getDataStart();
+            if (used) {
+                Arrays.fill(refcounts, index, index + count, (short) 1);
+                writeRefcounts(index, index + count);
+                setBlocks(blockIndex, count, true);
+                return;
+            }
+            // 连续降为 0 的一段一起释放
+            int run = 0;
+            for (int i = index; i < index + count; i++) {
+                int n = refcount(i);
+                if (n > 0) {
+                    refcounts[i] = (short) (n - 1);
+                }
+                if (n <= 1) {
+                    run++;
+                } else if (run > 0) {
+                    setBlocks(blockIndex + i - index - run, run, false);
+                    run = 0;
+                }
+            }
+            if (run > 0) {
+                setBlocks(blockIndex + count - run, run, false);
+            }
+            writeRefcounts(index, index + count);
+        }
+    }
+
+    /**
+     * 修改位图中连续的块,释放时日志中有旧内容的块推迟到检查点之后才能重新分配
+     */
+    private void setBlocks(int blockIndex, int count, boolean used) {
+        synchronized (blockAllocLock) {
+            updateBitmap(bitMap, superBlock.getBlockBitmapStart(), blockIndex - superBlock.getDataStart(), count, used);
+            if (!used && dedup != null) {
+                dedup.release(blockIndex, count);
+            }
+            if (!used && journal != null) {
+                // 磁盘上的位图已清除,内存中暂不释放
+                BitSet logged = journal.getLogged(blockIndex, blockIndex + count);
+                for (int i = logged.nextSetBit(0); i >= 0; i = logged.nextSetBit(i + 1)) {
+                    int index = blockIndex + i - superBlock.getDataStart();
+                    bitMap.set(index);
+                    deferredFree.set(index);
+                }
+            }
+        }
+    }
+
+    private int refcount(int index) {
+        return refcounts[index] & 0xffff;
+    }
+
+    /**
+     * 块是否被其他快照共用,写入前须先复制
+     */
+    private boolean isShared(int blockIndex) {
+        synchronized (blockAllocLock) {
+            return refcounts != null && refcount(blockIndex - superBlock.getDataStart()) > 1;
+        }
+    }
+
+    /**
+     * 把引用计数表中 [from, to) 项所在的块写入磁盘,每项 2 字节,小端序。调用者需持有 blockAllocLock
+     */
+    private void writeRefcounts(int from, int to) {
+        int perBlock = blockSize / 2;
+        byte[] block = emptyBlock();
+        for (int b = from / perBlock; b * perBlock < to; b++) {
+            Arrays.fill(block, (byte) 0);
+            for (int i = 0; i < perBlock && b * perBlock + i < refcounts.length; i++) {
+                short n = refcounts[b * perBlock + i];
+                block[i * 2] = (byte) n;
+                block[i * 2 + 1] = (byte) (n >> 8);
+            }
+            writeMeta(superBlock.getRefcountStart() + b, block);
+        }
+    }
+
+    private short[] readRefcounts() {
+        int count = superBlock.getRefcountBlocks();
+        byte[] bytes = new byte[count * blockSize];
+        disk.read(superBlock.getRefcountStart(), bytes, 0, count);
+        short[] ret = new short[superBlock.getDataBlocks()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (short) ((bytes[i * 2] & 0xff) | (bytes[i * 2 + 1] & 0xff) << 8);
+        }
+        return ret;
+    }
+
+    /**
+     * 检查点之后日志中不再有这些块的旧内容,可以重新分配
+     */
+    private void releaseDeferred() {
+        synchronized (blockAllocLock) {
+            bitMap.andNot(deferredFree);
+            deferredFree.clear();
+        }
+    }
+
+    /**
+     * 写入元数据块,有日志时记入当前事务
+     */
+    private void writeMeta(int blockIndex, byte[] block) {
+        if (journal != null) {
+            journal.write(blockIndex, block);
+        } else {
+            disk.write(blockIndex, block);
+        }
+    }
+
+    /**
+     * 开始一个修改元数据的操作,须在持有 inode 锁之前调用
+     */
+    private void begin() {
+        if (journal != null) {
+            journal.begin();
+        }
+    }
+
+    private void end() {
+        if (journal != null) {
+            journal.end();
+        }
+    }
+
+    /**
+     * 取文件系统的读锁并开始一个操作,开始时提交事务失败则释放读锁
+     */
+    private void beginShared() {
+        fsLock.readLock().lock();
+        try {
+            begin();
+        } catch (RuntimeException e) {
+            fsLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * 从上次分配的位置开始查找空闲位,到末尾后回绕
+     */
+    private int findClear(BitSet bitmap, int hint, int limit, String counter) {
+        metrics.add(counter, 1);
+        int i = bitmap.nextClearBit(hint);
+        if (i >= limit) {
+            i = bitmap.nextClearBit(0);
+        }
+        return i < limit ? i : -1;
+    }
+
+    /**
+     * 从分配组 group 的第一个 inode 开始查找空闲的 inode
+     */
+    private int allocInumber(int group) {
+        synchronized (inodeAllocLock) {
+            int i = findClear(inodeMap, group * inodesPerGroup(), superBlock.getInodeCount(), "alloc.inode.scans");
+            if (i == -1) {
+                return -1;
+            }
+            markInode(i, true);
+            return i;
+        }
+    }
+
+    private void resetGroups() {
+        groupHints = new int[(superBlock.getDataBlocks() + groupBlocks() - 1) / groupBlocks()];
+        for (int g = 0; g < groupHints.length; g++) {
+            groupHints[g] = g * groupBlocks();
+        }
+    }
+
+    /**
+     * 每个分配组的数据块数,即一个位图块记录的块数
+     */
+    private int groupBlocks() {
+        return blockSize * 8;
+    }
+
+    /**
+     * 每个分配组的 inode 数,取整到整个 inode 块
+     */
+    private int inodesPerGroup() {
+        int perGroup = (superBlock.getInodeCount() + groupHints.length - 1) / groupHints.length;
+        return (perGroup + inodesPerBlock - 1) / inodesPerBlock * inodesPerBlock;
+    }
+
+    private int groupOf(int inumber) {
+        return Math.min(inumber / inodesPerGroup(), groupHints.length - 1);
+    }
+
+    /**
+     * 为新目录选择分配组: 有空闲 inode 的组中空闲块最多的一个,相同时取空闲 inode 多的,
+     * 从父目录的下一组开始比较,目录因此分散到各组
+     */
+    private int dirGroup(int parentInumber) {
+        int parent = groupOf(parentInumber);
+        int perGroup = inodesPerGroup();
+        int best = parent;
+        long bestFree = -1;
+        for (int k = 1; k <= groupHints.length; k++) {
+            int g = (parent + k) % groupHints.length;
+            int from = g * perGroup;
+            int to = Math.min(superBlock.getInodeCount(), from + perGroup);
+            if (from >= to) {
+                continue;
+            }
+            int inodes;
+            synchronized (inodeAllocLock) {
+                inodes = to - from - inodeMap.get(from, to).cardinality();
+            }
+            if (inodes == 0) {
+                continue;
+            }
+            int blocks = Math.min(superBlock.getDataBlocks(), (g + 1) * groupBlocks()) - g * groupBlocks();
+            long free;
+            synchronized (blockAllocLock) {
+                free = blocks - bitMap.get(g * groupBlocks(), g * groupBlocks() + blocks).cardinality();
+            }
+            // 空闲块数为主,空闲 inode 数只在块数相同时起作用
+            free = free * (perGroup + 1) + inodes;
+            if (free > bestFree) {
+                best = g;
+                bestFree = free;
+            }
+        }
+        return best;
+    }
+
+    private int allocDataBlock() {
+        synchronized (blockAllocLock) {
+            int i = findClear(bitMap, blockHint, superBlock.getDataBlocks(), "alloc.block.scans");
+            if (i == -1) {
+                return -1;
+            }
+            int blockIndex = i + superBlock.getDataStart();
+            markBlock(blockIndex, true);
+            blockHint = i + 1;
+            return blockIndex;
+        }
+    }
+
+    /**
+     * 分配 count 个连续的块,不属于任何文件
+     *
+     * @return 起始块号,没有足够长的空闲段时返回 -1
+     */
+    private int allocRun(int count) {
+        synchronized (blockAllocLock) {
+            return allocRun(blockHint, count);
+        }
+    }
+
+    /**
+     * 从数据区的第 from 块开始查找并分配 count 个连续的块
+     */
+    private int allocRun(int from, int count) {
+        int limit = superBlock.getDataBlocks();
+        synchronized (blockAllocLock) {
+            int i = findRun(from, count);
+            if (i == -1) {
+                return -1;
+            }
+            int end = bitMap.nextSetBit(i);
+            if ((end == -1 || end > limit ? limit : end) - i < count) {
+                return -1;
+            }
+            markBlocks(i + superBlock.getDataStart(), count, true);
+            blockHint = i + count;
+            return i + superBlock.getDataStart();
+        }
+    }
+
+    private byte[] emptyBlock() {
+        return new byte[blockSize];
+    }
+
+    /**
+     * inumber 所在的 inode 块
+     */
+    private int inodeBlockOf(int inumber) {
+        return inodeStart + inumber / inodesPerBlock;
+    }
+
+    /**
+     * inumber 在其 inode 块中的偏移
+     */
+    private int inodeOffsetOf(int inumber) {
+        return inumber % inodesPerBlock * inodeSize;
+    }
+
+    private IndexNode getRootInode() {
+        return getInode(0);
+    }
+
+    /**
+     * 获取 inode,返回的是 inode 表中的缓存对象,修改后需调用 {@link #saveInode}
+     */
+    public IndexNode getInode(int inodeIndex) {
+        IndexNode inode = inodeTable.get(inodeIndex);
+        if (inode != null) {
+            return inode;
+        }
+        int blockIndex = inodeBlockOf(inodeIndex);
+        synchronized (inodeBlockLock(blockIndex)) {
+            // 其他线程可能已经读入
+            inode = inodeTable.get(inodeIndex);
+            if (inode == null) {
+                byte[] block = emptyBlock();
+                disk.read(blockIndex, block);
+                inode = decodeInode(block, inodeIndex);
+                inodeTable.set(inodeIndex, inode);
+            }
+            return inode;
+        }
+    }
+
+    /**
+     * 从 inode 块的内容中解码 inumber,有间接 extent 块时一并读入
+     */
+    private IndexNode decodeInode(byte[] block, int inumber) {
+        IndexNode inode = new IndexNode();
+        inode.decode(block, inodeOffsetOf(inumber), inodeSize);
+        if (inode.getIndirect() != 0) {
+            byte[] indirect = emptyBlock();
+            disk.read(inode.getIndirect(), indirect);
+            inode.decodeIndirect(indirect);
+        }
+        return inode;
+    }
+
+    /**
+     * 把 inumbers 中尚未缓存的 inode 读入 inode 表,同一 inode 块只读一次
+     *
+     * @param inumbers 前 count 项按升序排列
+     */
+    private void loadInodes(int[] inumbers, int count) {
+        byte[] block = null;
+        int i = 0;
+        while (i < count) {
+            int blockIndex = inodeBlockOf(inumbers[i]);
+            int end = i;
+            boolean missing = false;
+            while (end < count && inodeBlockOf(inumbers[end]) == blockIndex) {
+                missing |= inodeTable.get(inumbers[end]) == null;
+                end++;
+            }
+            if (missing) {
+                if (block == null) {
+                    block = emptyBlock();
+                }
+                synchronized (inodeBlockLock(blockIndex)) {
+                    disk.read(blockIndex, block);
+                    for (int j = i; j < end; j++) {
+                        if (inodeTable.get(inumbers[j]) == null) {
+                            inodeTable.set(inumbers[j], decodeInode(block, inumbers[j]));
+                        }
+                    }
+                }
+                metrics.add("readdir.inode.blocks", 1);
+            }
+            i = end;
+        }
+    }
+
+    private Object inodeBlockLock(int blockIndex) {
+        return inodeBlockLocks[blockIndex % INODE_BLOCK_LOCKS];
+    }
+
+    private String getParentPath(String filename) {
+        if (filename.equals("/") || filename.equals("")) return "/";
+        String[] path = splitPath(filename);
+        if (path.length == 1) {
+            return "/";
+        }
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < path.length - 1; i++) {
+            ret.append("/").append(path[i]);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * 创建一个新的文件
+     *
+     * @param filename 文件名,不超过28个字节
+     */
+    private int create(String filename, byte type) {
+        long start = System.nanoTime();
+        beginShared();
+        try {
+            if (readOnly || lookupPath(filename) != -1) {
+                // 只读或文件已存在
+                return -1;
+            }
+            String parent = getParentPath(filename);
+            String[] path = splitPath(filename);
+            int parentInumber = lookupPath(parent);
+            if (parentInumber == -1) {
+                // 父目录不存在
+                return -1;
+            }
+            String name = path[path.length - 1];
+            if (name.isEmpty() || name.length() > 28) {
+                return -1;
+            }
+            ReentrantReadWriteLock.WriteLock dirLock = inodeLocks[parentInumber].writeLock();
+            dirLock.lock();
+            try {
+                IndexNode parentInode = getInode(parentInumber);
+                if (!parentInode.isDir()) {
+                    // 父文件不是目录
+                    return -1;
+                }
+                if (lookupEntry(parentInumber, name) != -1) {
+                    // 其他线程已创建同名文件
+                    return -1;
+                }
+                // 分配 inode,普通文件与父目录在同一个分配组
+                int inumber = allocInumber(type == 1 ? dirGroup(parentInumber) : groupOf(parentInumber));
+                if (inumber == -1) {
+                    return -1;
+                }
+                IndexNode inode = new IndexNode();
+                initInode(inode, type);
+                if (type == 0 && superBlock.hasFeature(SuperBlock.FEATURE_COMPRESS)) {
+                    inode.setFlag(IndexNode.FLAG_COMPRESSED, true);
+                }
+                saveInode(inumber, inode);
+                // 目录项 32 字节
+                byte[] dir_item = new byte[32];
+                System.arraycopy(name.getBytes(StandardCharsets.US_ASCII), 0, dir_item, 0, name.length());
+                Util.putInt(dir_item, 28, inumber);
+                if (!addEntry(parentInumber, dir_item)) {
+                    deleteInode(inumber);
+                    return -1;
+                }
+                dentries.put(joinPath(path, path.length), inumber);
+                return inumber;
+            } finally {
+                dirLock.unlock();
+            }
+        } finally {
+            end();
+            fsLock.readLock().unlock();
+            metrics.record(type == 1 ? "mkdir" : "touch", start);
+        }
+    }
+
+    public int stat(String filename) {
+        long start = System.nanoTime();
+        fsLock.readLock().lock();
+        try {
+            return lookupPath(filename);
+        } finally {
+            fsLock.readLock().unlock();
+            metrics.record("stat", start);
+        }
+    }
+
+    /**
+     * 解析路径,逐级持有目录的读锁查找目录项。
+     * 目录项缓存的更新都在持有所在目录的锁时进行,与 create / unlink 对该目录的修改有先后顺序
+     */
+    private int lookupPath(String filename) {
+        if (filename.equals("/")) return 0;
+        String[] path = splitPath(filename);
+        if (path.length == 0) return 0;
+        Integer cached = dentries.get(joinPath(path, path.length));
+        if (cached != null) {
+            return cached;
+        }
+        // 从已缓存的最深的祖先目录开始查找
+        int inumber = 0;
+        int depth = 0;
+        for (int k = path.length - 1; k > 0; k--) {
+            cached = dentries.get(joinPath(path, k));
+            if (cached != null) {
+                if (cached == DentryCache.NEGATIVE) {
+                    // 此处未持有目录锁,不缓存完整路径
+                    return -1;
+                }
+                inumber = cached;
+                depth = k;
+                break;
+            }
+        }
+        for (int k = depth; k < path.length; k++) {
+            ReentrantReadWriteLock.ReadLock dirLock = inodeLocks[inumber].readLock();
+            dirLock.lock();
+            try {
+                if (getInode(inumber).getType() != 1) {
+                    // 不是目录,该文件之后可能被删除并替换为同名目录,不缓存
+                    return -1;
+                }
+                inumber = lookupEntry(inumber, path[k]);
+                if (inumber == -1) {
+                    dentries.putNegative(joinPath(path, path.length));
+                    return -1;
+                }
+                dentries.put(joinPath(path, k + 1), inumber);
+            } finally {
+                dirLock.unlock();
+            }
+        }
+        return inumber;
+    }
+
+    private void read(int inumber, byte[] content, int offset) {
+        IndexNode inode = getInode(inumber);
+        int end = Math.min(offset + content.length, inode.getSize());
+        readData(inode, content, 0, offset, end);
+    }
+
+    private boolean write(int inumber, byte[] content, int offset) {
+        IndexNode inode = getInode(inumber);
+        int length = content.length;
+
+        if (!inode.isDir() && offset + length <= inlineCapacity()) {
+            // 写入后的文件足够小,内容保存在 inode 中
+            toInline(inumber, inode, offset + length);
+            System.arraycopy(content, 0, inode.getInlineData(), offset, length);
+            saveInode(inumber, inode);
+            return true;
+        }
+        if (!reserveIndirect(inode, inode.getExtentCount())) {
+            return false;
+        }
+        if (inode.hasFlag(IndexNode.FLAG_COMPRESSED)) {
+            return writeCompressed(inumber, inode, content, 0, offset, offset + length, true);
+        }
+        if (offset > inode.getSize() && !resize(inumber, offset)) {
+            // 跳过的部分先补零
+            return false;
+        }
+        if (inode.isInlineData() && !promote(inumber, inode)) {
+            return false;
+        }
+        if (offset + length > inode.getSize()) {
+            // 如果写入的部分超出文件长度重新分配磁盘块
+            if (!growFile(inumber, inode, (offset + length + blockSize - 1) / blockSize)) {
+                saveInode(inumber, inode);
+                return false;
+            }
+        }
+        if (!unshare(inumber, inode, offset, offset + length)) {
+            saveInode(inumber, inode);
+            return false;
+        }
+
+        if (offset + length < inode.getSize()) {
+            // 写入后文件截断到写入结束的位置
+            resize(inumber, offset + length);
+        }
+        inode.setSize(offset + length);
+        saveInode(inumber, inode);
+        writeData(inumber, inode, content, 0, offset, offset + length);
+        return true;
+    }
+
+    /**
+     * 从文件的 position 处读出最多 length 字节到 buffer[pos]
+     *
+     * @return 读出的字节数,位于文件末尾时返回 -1
+     */
+    int read(int inumber, long position, byte[] buffer, int pos, int length) {
+        long start = System.nanoTime();
+        fsLock.readLock().lock();
+        ReentrantReadWriteLock.ReadLock lock = inodeLocks[inumber].readLock();
+        lock.lock();
+        try {
+            return readAt(inumber, position, buffer, pos, length);
+        } finally {
+            lock.unlock();
+            fsLock.readLock().unlock();
+            metrics.record("handle.read", start);
+        }
+    }
+
+    private int readAt(int inumber, long position, byte[] buffer, int pos, int length) {
+        IndexNode inode = getInode(inumber);
+        if (position >= inode.getSize()) {
+            return -1;
+        }
+        int end = (int) Math.min(position + length, inode.getSize());
+        readData(inode, buffer, pos, (int) position, end);
+        return end - (int) position;
+    }
+
+    /**
+     * 将 buffer[pos, pos + length) 写入文件的 position 处,超出文件末尾时扩展文件,不截断
+     */
+    boolean write(int inumber, long position, byte[] buffer, int pos, int length) {
+        long start = System.nanoTime();
+        beginShared();
+        ReentrantReadWriteLock.WriteLock lock = inodeLocks[inumber].writeLock();
+        lock.lock();
+        try {
+            if (readOnly || getInode(inumber).getValid() == 0) {
+                // 只读或文件已被删除
+                return false;
+            }
+            return writeAt(inumber, position, buffer, pos, length);
+        } finally {
+            lock.unlock();
+            end();
+            fsLock.readLock().unlock();
+            metrics.record("handle.write", start);
+        }
+    }
+
+    private boolean writeAt(int inumber, long position, byte[] buffer, int pos, int length) {
+        if (position + length > Integer.MAX_VALUE) {
+            return false;
+        }
+        IndexNode inode = getInode(inumber);
+        int end = (int) position + length;
+        if (!inode.isDir() && Math.max(end, inode.getSize()) <= inlineCapacity()
+                && (inode.isInlineData() || inode.getBlockCount() == 0)) {
+            toInline(inumber, inode, Math.max(end, inode.getSize()));
+            System.arraycopy(buffer, pos, inode.getInlineData(), (int) position, length);
+            saveInode(inumber, inode);
+            return true;
+        }
+        if (!reserveIndirect(inode, inode.getExtentCount())) {
+            return false;
+        }
+        if (inode.hasFlag(IndexNode.FLAG_COMPRESSED)) {
+            return writeCompressed(inumber, inode, buffer, pos, (int) position, end, false);
+        }
+        if (position > inode.getSize() && !resize(inumber, (int) position)) {
+            // 跳过的部分先补零
+            return false;
+        }
+        if (inode.isInlineData() && !promote(inumber, inode)) {
+            return false;
+        }
+        if (end > inode.getSize()) {
+            if (!growFile(inumber, inode, (end + blockSize - 1) / blockSize)) {
+                saveInode(inumber, inode);
+                return false;
+            }
+            inode.setSize(end);
+            saveInode(inumber, inode);
+        }
+        if (!unshare(inumber, inode, (int) position, end)) {
+            return false;
+        }
+        writeData(inumber, inode, buffer, pos, (int) position, end);
+        return true;
+    }
+
+    /**
+     * 将文件截断或扩展到 size 字节,截断时释放多余的块
+     */
+    boolean truncate(int inumber, int size) {
+        long start = System.nanoTime();
+        beginShared();
+        ReentrantReadWriteLock.WriteLock lock = inodeLocks[inumber].writeLock();
+        lock.lock();
+        try {
+            if (readOnly || getInode(inumber).getValid() == 0) {
+                return false;
+            }
+            return resize(inumber, size);
+        } finally {
+            lock.unlock();
+            end();
+            fsLock.readLock().unlock();
+            metrics.record("truncate", start);
+        }
+    }
+
+    private boolean resize(int inumber, int size) {
+        IndexNode inode = getInode(inumber);
+        if (!inode.isDir() && size <= inlineCapacity()) {
+            toInline(inumber, inode, size);
+            saveInode(inumber, inode);
+            return true;
+        }
+        if (!reserveIndirect(inode, inode.getExtentCount())) {
+            return false;
+        }
+        if (inode.hasFlag(IndexNode.FLAG_COMPRESSED)) {
+            return writeCompressed(inumber, inode, new byte[0], 0, size, size, true);
+        }
+        if (inode.isInlineData() && !promote(inumber, inode)) {
+            return false;
+        }
+        if (size > inode.getSize()) {
+            if (!growFile(inumber, inode, (size + blockSize - 1) / blockSize) || !unshare(inumber, inode, inode.getSize(), size)) {
+                saveInode(inumber, inode);
+                return false;
+            }
+            // 扩展的部分补零
+            byte[] zeros = new byte[size - inode.getSize()];
+            int oldSize = inode.getSize();
+            inode.setSize(size);
+            saveInode(inumber, inode);
+            writeData(inumber, inode, zeros, 0, oldSize, size);
+            return true;
+        }
+        awaitAsync(inumber);
+        int keep = (size + blockSize - 1) / blockSize;
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            int length = inode.getExtentLength(e);
+            if (logical + length > keep) {
+                int kept = Math.max(0, keep - logical);
+                for (int r = e; r < inode.getExtentCount(); r++) {
+                    int from = r == e ? kept : 0;
+                    markBlocks(inode.getExtentStart(r) + from, inode.getExtentLength(r) - from, false);
+                }
+                if (kept > 0) {
+                    inode.truncateExtents(e + 1, kept);
+                } else {
+                    inode.truncateExtents(e, e > 0 ? inode.getExtentLength(e - 1) : 0);
+                }
+                break;
+            }
+            logical += length;
+        }
+        inode.setSize(size);
+        saveInode(inumber, inode);
+        return true;
+    }
+
+    int getFileSize(int inumber) {
+        fsLock.readLock().lock();
+        ReentrantReadWriteLock.ReadLock lock = inodeLocks[inumber].readLock();
+        lock.lock();
+        try {
+            return getInode(inumber).getSize();
+        } finally {
+            lock.unlock();
+            fsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 对文件的写入返回 false 的原因,用于错误信息
+     */
+    String writeFailure(int inumber) {
+        fsLock.readLock().lock();
+        try {
+            if (readOnly) {
+                return "只读挂载";
+            }
+            if (getInode(inumber).getValid() == 0) {
+                return "文件已被删除";
+            }
+            return "磁盘空间不足或文件过大";
+        } finally {
+            fsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在文件字节 [offset, end) 与 content[pos] 起的数据之间传输,每个 extent 内合并为一次向量化请求
+     */
+    private void transfer(IndexNode inode, byte[] content, int pos, int offset, int end, boolean write) {
+        if (inode.isInlineData()) {
+            // 内容在 inode 中,不读写数据块;写入后调用者需保存 inode
+            byte[] data = inode.getInlineData();
+            int n = Math.max(0, Math.min(end, data.length) - offset);
+            if (write) {
+                System.arraycopy(content, pos, data, offset, n);
+            } else {
+                System.arraycopy(data, offset, content, pos, n);
+            }
+            return;
+        }
+        if (write && journal != null && inode.isDir()) {
+            // 目录内容属于元数据,逐块记入日志
+            for (int from = offset; from < end; from = from / blockSize * blockSize + blockSize) {
+                int to = Math.min(end, from / blockSize * blockSize + blockSize);
+                byte[] block = emptyBlock();
+                if (to - from < blockSize) {
+                    readFileBlock(inode, from / blockSize, block);
+                }
+                System.arraycopy(content, pos + from - offset, block, from % blockSize, to - from);
+                // 调用者已换掉共用的块
+                writeMeta(bmap(inode, from / blockSize), block);
+            }
+            return;
+        }
+        // 当前 extent 的起始逻辑块号
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount() && logical * blockSize < end; e++) {
+            int length = inode.getExtentLength(e);
+            int from = Math.max(offset, logical * blockSize);
+            int to = Math.min(end, (logical + length) * blockSize);
+            if (from < to) {
+                int blockIndex = inode.getExtentStart(e) + from / blockSize - logical;
+                transferRun(blockIndex, content, pos + from - offset, from, to, write);
+            }
+            logical += length;
+        }
+    }
+
+    /**
+     * 在一段物理连续的块上传输文件字节 [from, to)。
+     * 整块部分直接读写 content,首尾不满一块的部分使用临时块,写入时只对这两块先读后写
+     *
+     * @param blockIndex from 所在的磁盘块
+     * @param pos        content 中对应 from 的下标
+     */
+    private void transferRun(int blockIndex, byte[] content, int pos, int from, int to, boolean write) {
+        int alignedFrom = (from + blockSize - 1) / blockSize * blockSize;
+        int alignedTo = to / blockSize * blockSize;
+        if (alignedFrom > alignedTo) {
+            // 落在同一个块内
+            byte[] block = emptyBlock();
+            disk.read(blockIndex, block);
+            if (write) {
+                System.arraycopy(content, pos, block, from % blockSize, to - from);
+                disk.write(blockIndex, block);
+            } else {
+                System.arraycopy(block, from % blockSize, content, pos, to - from);
+            }
+            return;
+        }
+        byte[] head = from < alignedFrom ? emptyBlock() : null;
+        byte[] tail = alignedTo < to ? emptyBlock() : null;
+        int tailIndex = blockIndex + (alignedTo - from / blockSize * blockSize) / blockSize;
+        if (write) {
+            if (head != null) {
+                disk.read(blockIndex, head);
+                System.arraycopy(content, pos, head, from % blockSize, alignedFrom - from);
+            }
+            if (tail != null) {
+                disk.read(tailIndex, tail);
+                System.arraycopy(content, pos + alignedTo - from, tail, 0, to - alignedTo);
+            }
+        }
+        ByteBuffer[] buffers = runBuffers(head, content, pos + alignedFrom - from, alignedTo - alignedFrom, tail);
+        if (write) {
+            disk.write(blockIndex, buffers);
+            return;
+        }
+        disk.read(blockIndex, buffers);
+        if (head != null) {
+            System.arraycopy(head, from % blockSize, content, pos, alignedFrom - from);
+        }
+        if (tail != null) {
+            System.arraycopy(tail, 0, content, pos + alignedTo - from, to - alignedTo);
+        }
+    }
+
+    /**
+     * 依次由首块、content[pos, pos + length) 和尾块组成的缓冲区,首尾块可为 null
+     */
+    private static ByteBuffer[] runBuffers(byte[] head, byte[] content, int pos, int length, byte[] tail) {
+        ByteBuffer[] buffers = new ByteBuffer[(head != null ? 1 : 0) + (length > 0 ? 1 : 0) + (tail != null ? 1 : 0)];
+        int n = 0;
+        if (head != null) {
+            buffers[n++] = ByteBuffer.wrap(head);
+        }
+        if (length > 0) {
+            buffers[n++] = ByteBuffer.wrap(content, pos, length);
+        }
+        if (tail != null) {
+            buffers[n] = ByteBuffer.wrap(tail);
+        }
+        return buffers;
+    }
+
+    /**
+     * 与 {@link #transfer} 相同,但各 extent 上的读写同时异步发出,全部完成时 future 完成。
+     * 写入时首尾不满一块的部分先同步读出,落在一个块内的读写同步完成
+     */
+    private CompletableFuture<Void> transferAsync(IndexNode inode, byte[] content, int pos, int offset, int end, boolean write) {
+        if (inode.isInlineData()) {
+            transfer(inode, content, pos, offset, end, write);
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount() && logical * blockSize < end; e++) {
+            int length = inode.getExtentLength(e);
+            int from = Math.max(offset, logical * blockSize);
+            int to = Math.min(end, (logical + length) * blockSize);
+            if (from < to) {
+                int blockIndex = inode.getExtentStart(e) + from / blockSize - logical;
+                futures.add(transferRunAsync(blockIndex, content, pos + from - offset, from, to, write));
+            }
+            logical += length;
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> transferRunAsync(int blockIndex, byte[] content, int pos, int from, int to, boolean write) {
+        int alignedFrom = (from + blockSize - 1) / blockSize * blockSize;
+        int alignedTo = to / blockSize * blockSize;
+        if (alignedFrom > alignedTo) {
+            transferRun(blockIndex, content, pos, from, to, write);
+            return CompletableFuture.completedFuture(null);
+        }
+        byte[] head = from < alignedFrom ? emptyBlock() : null;
+        byte[] tail = alignedTo < to ? emptyBlock() : null;
+        int tailIndex = blockIndex + (alignedTo - from / blockSize * blockSize) / blockSize;
+        if (write) {
+            if (head != null) {
+                disk.read(blockIndex, head);
+                System.arraycopy(content, pos, head, from % blockSize, alignedFrom - from);
+            }
+            if (tail != null) {
+                disk.read(tailIndex, tail);
+                System.arraycopy(content, pos + alignedTo - from, tail, 0, to - alignedTo);
+            }
+        }
+        ByteBuffer[] buffers = runBuffers(head, content, pos + alignedFrom - from, alignedTo - alignedFrom, tail);
+        if (write) {
+            return disk.writeAsync(blockIndex, buffers);
+        }
+        return disk.readAsync(blockIndex, buffers).thenRun(() -> {
+            if (head != null) {
+                System.arraycopy(head, from % blockSize, content, pos, alignedFrom - from);
+            }
+            if (tail != null) {
+                System.arraycopy(tail, 0, content, pos + alignedTo - from, to - alignedTo);
+            }
+        });
+    }
+
+    /**
+     * 将文件内的逻辑块号映射为磁盘块号
+     *
+     * @return 磁盘块号,超出文件已分配的块时返回 0
+     */
+    private int bmap(IndexNode inode, int fileBlock) {
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            int length = inode.getExtentLength(e);
+            if (fileBlock < length) {
+                return inode.getExtentStart(e) + fileBlock;
+            }
+            fileBlock -= length;
+        }
+        return 0;
+    }
+
+    /**
+     * 普通文件不超过该字节数时内容保存在 inode 中
+     */
+    private int inlineCapacity() {
+        return IndexNode.inlineCapacity(inodeSize);
+    }
+
+    /**
+     * 把文件改为内联保存并调整到 size 字节,多出的部分补零,原有的块全部释放。
+     * size 不超过内联容量,之后调用者需保存 inode
+     */
+    private void toInline(int inumber, IndexNode inode, int size) {
+        byte[] data = new byte[size];
+        if (inode.isInlineData()) {
+            byte[] old = inode.getInlineData();
+            System.arraycopy(old, 0, data, 0, Math.min(size, old.length));
+        } else {
+            readData(inode, data, 0, 0, Math.min(size, inode.getSize()));
+            awaitAsync(inumber);
+            freeBlocks(inode);
+        }
+        inode.setInlineData(data);
+        inode.setSize(size);
+    }
+
+    /**
+     * 内联保存的文件增长到超出内联容量之前,把内容移到新分配的块中,之后调用者需保存 inode
+     *
+     * @return 空间不足时返回 false,文件不变
+     */
+    private boolean promote(int inumber, IndexNode inode) {
+        byte[] data = inode.getInlineData();
+        inode.clearInlineData();
+        if (!growFile(inumber, inode, (data.length + blockSize - 1) / blockSize)) {
+            freeBlocks(inode);
+            inode.setInlineData(data);
+            return false;
+        }
+        transfer(inode, data, 0, 0, data.length, true);
+        metrics.add("inline.promotions", 1);
+        return true;
+    }
+
+    /**
+     * 读出文件字节 [offset, end) 到 content[pos] 起,按文件的保存方式选择直接读取或解压
+     */
+    private void readData(IndexNode inode, byte[] content, int pos, int offset, int end) {
+        if (inode.hasFlag(IndexNode.FLAG_COMPRESSED) && !inode.isInlineData()) {
+            readCompressed(inode, content, pos, offset, end);
+        } else {
+            transfer(inode, content, pos, offset, end, false);
+        }
+    }
+
+    private int chunkBytes() {
+        return COMPRESS_CHUNK_BLOCKS * blockSize;
+    }
+
+    /**
+     * 读出压缩文件的字节 [offset, end),只读取并解压其中涉及的组
+     */
+    private void readCompressed(IndexNode inode, byte[] content, int pos, int offset, int end) {
+        if (offset >= end) {
+            return;
+        }
+        byte[] header = emptyBlock();
+        readFileBlock(inode, 0, header);
+        int first = offset / chunkBytes();
+        int last = (end - 1) / chunkBytes();
+        int from = 1;
+        for (int i = 0; i < first; i++) {
+            from += header[8 + i] & 0xff;
+        }
+        int to = from;
+        for (int i = first; i <= last; i++) {
+            to += header[8 + i] & 0xff;
+        }
+        byte[] stored = new byte[(to - from) * blockSize];
+        transfer(inode, stored, 0, from * blockSize, to * blockSize, false);
+        decodeChunks(header, inode.getSize(), stored, first, last, content, pos, offset, end);
+    }
+
+    /**
+     * 从连续存放的第 first 到 last 组中取出文件字节 [offset, end) 到 content[pos] 起。
+     * 整组都需要的压缩组直接解压到 content 中
+     */
+    private void decodeChunks(byte[] header, int size, byte[] stored, int first, int last,
+                              byte[] content, int pos, int offset, int end) {
+        int chunkBytes = chunkBytes();
+        byte[] chunk = null;
+        int at = 0;
+        for (int i = first; i <= last; i++) {
+            int base = i * chunkBytes;
+            int length = Math.min(chunkBytes, size - base);
+            int blocks = header[8 + i] & 0xff;
+            int from = Math.max(offset, base);
+            int to = Math.min(end, base + length);
+            if (blocks == (length + blockSize - 1) / blockSize) {
+                System.arraycopy(stored, at + from - base, content, pos + from - offset, to - from);
+            } else if (from == base && to == base + length) {
+                if (!LzCodec.decompress(stored, at, blocks * blockSize, content, pos + from - offset, length)) {
+                    metrics.add("compress.corrupt", 1);
+                }
+            } else {
+                if (chunk == null) {
+                    chunk = new byte[chunkBytes];
+                }
+                if (!LzCodec.decompress(stored, at, blocks * blockSize, chunk, 0, length)) {
+                    metrics.add("compress.corrupt", 1);
+                }
+                System.arraycopy(chunk, from - base, content, pos + from - offset, to - from);
+            }
+            at += blocks * blockSize;
+        }
+    }
+
+    /**
+     * 检查压缩文件的块组表
+     *
+     * @param size 文件大小,大于 0
+     * @return 块组表和各组共占用的块数,块组表无效时返回 -1
+     */
+    static int compressedBlocks(byte[] header, int size, int blockSize) {
+        int chunkBytes = COMPRESS_CHUNK_BLOCKS * blockSize;
+        long chunks = ((long) size + chunkBytes - 1) / chunkBytes;
+        if (Util.getInt(header, 0) != COMPRESSED_MAGIC || Util.getInt(header, 4) != chunks || chunks > blockSize - 8) {
+            return -1;
+        }
+        int blocks = 1;
+        for (int i = 0; i < chunks; i++) {
+            int stored = header[8 + i] & 0xff;
+            int raw = (Math.min(chunkBytes, size - i * chunkBytes) + blockSize - 1) / blockSize;
+            if (stored == 0 || stored > raw) {
+                return -1;
+            }
+            blocks += stored;
+        }
+        return blocks;
+    }
+
+    /**
+     * 写入压缩文件: 读出第一个改动的组到文件末尾的内容,写入 buffer[pos, pos + end - offset) 后重新压缩,
+     * 写到新分配的块中,再释放原来的块。不能压缩到更少块的组原样保存。之前的组和块组表所在的块不动。
+     * 文件还没有压缩标志时整个文件按新内容压缩,由调用者之后设置标志
+     *
+     * @param truncate 是否截断到 end,否则只在超出文件末尾时扩展
+     * @return 空间不足、extent 已满或超过最大组数时返回 false,文件不变
+     */
+    private boolean writeCompressed(int inumber, IndexNode inode, byte[] buffer, int pos, int offset, int end, boolean truncate) {
+        int chunkBytes = chunkBytes();
+        int oldSize = inode.getSize();
+        int size = truncate ? end : Math.max(end, oldSize);
+        int chunks = (int) (((long) size + chunkBytes - 1) / chunkBytes);
+        if (chunks > blockSize - 8) {
+            return false;
+        }
+        byte[] header = emptyBlock();
+        int first = 0;
+        int keep = 0;
+        if (inode.hasFlag(IndexNode.FLAG_COMPRESSED) && !inode.isInlineData() && oldSize > 0) {
+            readFileBlock(inode, 0, header);
+            first = Math.min(offset, oldSize) / chunkBytes;
+            keep = 1;
+            for (int i = 0; i < first; i++) {
+                keep += header[8 + i] & 0xff;
+            }
+        }
+        int base = first * chunkBytes;
+        byte[] data = new byte[Math.max(0, size - base)];
+        // 只读出不被覆盖的部分
+        int kept = Math.min(oldSize, size);
+        readData(inode, data, 0, base, Math.min(offset, kept));
+        if (end < kept) {
+            readData(inode, data, end - base, end, kept);
+        }
+        System.arraycopy(buffer, pos, data, offset - base, end - offset);
+        awaitAsync(inumber);
+        if (chunks == 0) {
+            freeBlocks(inode);
+            inode.clearInlineData();
+            inode.setSize(0);
+            saveInode(inumber, inode);
+            return true;
+        }
+
+        // 逐组压缩,放不进更少块的组原样保存
+        LzCodec codec = new LzCodec();
+        byte[] stored = new byte[(chunks - first) * chunkBytes];
+        int storedBlocks = 0;
+        for (int i = first; i < chunks; i++) {
+            int from = i * chunkBytes - base;
+            int length = Math.min(chunkBytes, data.length - from);
+            int raw = (length + blockSize - 1) / blockSize;
+            int n = codec.compress(data, from, length, stored, storedBlocks * blockSize, (raw - 1) * blockSize);
+            int blocks = n < 0 ? raw : (n + blockSize - 1) / blockSize;
+            if (n < 0) {
+                System.arraycopy(data, from, stored, storedBlocks * blockSize, length);
+            }
+            header[8 + i] = (byte) blocks;
+            storedBlocks += blocks;
+        }
+
+        // 块组表与快照共用时先复制一份,之后失败时文件仍完整;再分配新的块,保留之前的组
+        if (keep > 0 && !unshare(inumber, inode, 0, 1)) {
+            return false;
+        }
+        IndexNode layout = new IndexNode();
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount() && logical < keep; e++) {
+            int length = Math.min(inode.getExtentLength(e), keep - logical);
+            addRun(layout, inode.getExtentStart(e), length);
+            logical += length;
+        }
+        int headerBlocks = keep == 0 ? 1 : 0;
+        IndexNode fresh = new IndexNode();
+        boolean fits = true;
+        for (int count = 0; count < headerBlocks + storedBlocks && fits; ) {
+            int n = allocExtent(inumber, fresh, headerBlocks + storedBlocks - count);
+            fits = n > 0;
+            count += n;
+        }
+        for (int e = 0; e < fresh.getExtentCount() && fits; e++) {
+            fits = addRun(layout, fresh.getExtentStart(e), fresh.getExtentLength(e));
+        }
+        fits = fits && reserveIndirect(inode, layout.getExtentCount());
+        if (!fits) {
+            freeBlocks(fresh);
+            return false;
+        }
+        transfer(fresh, stored, 0, headerBlocks * blockSize, (headerBlocks + storedBlocks) * blockSize, true);
+
+        // 释放原来的组,换上新的 extent
+        logical = 0;
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            int length = inode.getExtentLength(e);
+            int from = Math.max(keep - logical, 0);
+            if (from < length) {
+                markBlocks(inode.getExtentStart(e) + from, length - from, false);
+            }
+            logical += length;
+        }
+        inode.clearInlineData();
+        inode.clearExtents();
+        addRun(inode, layout);
+        Util.putInt(header, 0, COMPRESSED_MAGIC);
+        Util.putInt(header, 4, chunks);
+        Arrays.fill(header, 8 + chunks, blockSize, (byte) 0);
+        writeMeta(bmap(inode, 0), header);
+        inode.setSize(size);
+        saveInode(inumber, inode);
+        metrics.add("compress.bytes.in", data.length);
+        metrics.add("compress.bytes.out", (long) storedBlocks * blockSize);
+        return true;
+    }
+
+    /**
+     * 为文件分配块直到共有 blocks 块,尽量紧接文件末尾分配连续的块
+     *
+     * @return 空间不足或 extent 已满时返回 false
+     */
+    private boolean growFile(int inumber, IndexNode inode, int blocks) {
+        int count = inode.getBlockCount();
+        while (count < blocks) {
+            if (!reserveIndirect(inode, inode.getExtentCount() + 1)) {
+                return false;
+            }
+            int n = allocExtent(inumber, inode, blocks - count);
+            if (n == 0) {
+                return false;
+            }
+            count += n;
+        }
+        return true;
+    }
+
+    /**
+     * inode 将有 extents 个 extent 而还没有间接 extent 块时分配一块,需在 {@link #saveInode} 之前调用。
+     * 旧版本 inode 的 6 个直接块转换后可能超过 3 个 extent 而没有间接块,修改这样的文件前也要调用
+     *
+     * @return 空间不足时返回 false,inode 不变
+     */
+    private boolean reserveIndirect(IndexNode inode, int extents) {
+        if (extents <= IndexNode.INLINE_EXTENTS || inode.getIndirect() != 0) {
+            return true;
+        }
+        int indirect = allocDataBlock();
+        if (indirect == -1) {
+            return false;
+        }
+        inode.setIndirect(indirect);
+        return true;
+    }
+
+    /**
+     * 为文件追加一个 extent,优先紧接文件的最后一个块,其次从文件末尾向后查找长度足够的空闲段;
+     * 还没有块的文件从 inode 所在分配组中上次分配的位置查找
+     *
+     * @return 分配的块数
+     */
+    private int allocExtent(int inumber, IndexNode inode, int want) {
+        int base = superBlock.getDataStart();
+        int limit = superBlock.getDataBlocks();
+        synchronized (blockAllocLock) {
+            int start = -1;
+            int goal = groupHints[groupOf(inumber)];
+            int count = inode.getExtentCount();
+            if (count > 0) {
+                goal = inode.getExtentStart(count - 1) + inode.getExtentLength(count - 1) - base;
+                if (goal < limit && !bitMap.get(goal)) {
+                    start = goal;
+                }
+            }
+            if (start == -1) {
+                start = findRun(Math.min(goal, limit), want);
+                if (start == -1) {
+                    return 0;
+                }
+            }
+            int end = bitMap.nextSetBit(start);
+            if (end == -1 || end > limit) {
+                end = limit;
+            }
+            int n = inode.addExtent(start + base, Math.min(want, end - start));
+            if (n > 0) {
+                markBlocks(start + base, n, true);
+                blockHint = start + n;
+                groupHints[start / groupBlocks()] = start + n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * 写入文件字节 [offset, end) 之前,把其中与快照或其他文件共用的块换成新分配的块 (写时复制)。
+     * 只有部分写入的首尾块需要复制原内容,整块覆盖的块直接换掉,原块的引用计数减一
+     *
+     * @return 空间不足或 extent 已满时返回 false,文件不变
+     */
+    private boolean unshare(int inumber, IndexNode inode, int offset, int end) {
+        if (refcounts == null || offset >= end) {
+            return true;
+        }
+        int first = offset / blockSize;
+        int last = (end - 1) / blockSize;
+        IndexNode remapped = new IndexNode();
+        // 每项为 原块号, 新块号, 文件内的逻辑块号
+        List<int[]> copies = new ArrayList<>();
+        boolean fits = true;
+        synchronized (blockAllocLock) {
+            int logical = 0;
+            for (int e = 0; e < inode.getExtentCount() && fits; e++) {
+                int start = inode.getExtentStart(e);
+                int length = inode.getExtentLength(e);
+                int from = Math.min(Math.max(first, logical), logical + length);
+                int to = Math.max(Math.min(last + 1, logical + length), from);
+                fits = addRun(remapped, start, from - logical);
+                for (int b = from; b < to && fits; b++) {
+                    int blockIndex = start + b - logical;
+                    if (refcount(blockIndex - superBlock.getDataStart()) <= 1 && dedup != null) {
+                        // 只属于这个文件,原地写入,之后内容与索引不符
+                        dedup.release(blockIndex, 1);
+                    } else if (refcount(blockIndex - superBlock.getDataStart()) > 1) {
+                        int fresh = allocDataBlock();
+                        if (fresh == -1) {
+                            fits = false;
+                            break;
+                        }
+                        copies.add(new int[]{blockIndex, fresh, b});
+                        blockIndex = fresh;
+                    }
+                    fits = addRun(remapped, blockIndex, 1);
+                }
+                fits = fits && addRun(remapped, start + to - logical, logical + length - to);
+                logical += length;
+            }
+            fits = fits && (copies.isEmpty() || reserveIndirect(inode, remapped.getExtentCount()));
+            if (!fits) {
+                for (int[] copy : copies) {
+                    markBlock(copy[1], false);
+                }
+                return false;
+            }
+        }
+        if (copies.isEmpty()) {
+            return true;
+        }
+        byte[] block = emptyBlock();
+        for (int[] copy : copies) {
+            int from = copy[2] * blockSize;
+            if (from < offset || from + blockSize > end) {
+                disk.read(copy[0], block);
+                if (inode.isDir() && journal != null) {
+                    writeMeta(copy[1], block);
+                } else {
+                    disk.write(copy[1], block);
+                }
+            }
+            markBlock(copy[0], false);
+        }
+        inode.clearExtents();
+        addRun(inode, remapped);
+        saveInode(inumber, inode);
+        metrics.add("cow.blocks", copies.size());
+        return true;
+    }
+
+    /**
+     * 写入文件字节 [offset, end),调用者已分配好块并换掉共用的块。去重模式下普通文件的整块先按指纹查找,
+     * 内容相同的块改为指向已有的块,其余的块写入后登记到索引。extent 放不下时照常写入
+     */
+    private void writeData(int inumber, IndexNode inode, byte[] content, int pos, int offset, int end) {
+        int first = (offset + blockSize - 1) / blockSize;
+        int last = end / blockSize;
+        if (dedup == null || first >= last || inode.isDir() || inode.isInlineData() || inode.hasFlag(IndexNode.FLAG_COMPRESSED)) {
+            transfer(inode, content, pos, offset, end, true);
+            return;
+        }
+        byte[] block = emptyBlock();
+        int[] fingerprints = new int[last - first];
+        // 文件块 first + i 改为共用的块,0 表示照常写入
+        int[] shared = new int[last - first];
+        int found = 0;
+        for (int b = first; b < last; b++) {
+            int at = pos + b * blockSize - offset;
+            fingerprints[b - first] = DedupIndex.fingerprint(content, at, blockSize);
+            int[] candidates;
+            synchronized (blockAllocLock) {
+                candidates = dedup.find(fingerprints[b - first]);
+            }
+            for (int candidate : candidates) {
+                if (!pin(candidate)) {
+                    continue;
+                }
+                // 指纹可能冲突,内容相同才共用
+                disk.read(candidate, block);
+                if (Arrays.equals(block, 0, blockSize, content, at, at + blockSize)) {
+                    shared[b - first] = candidate;
+                    found++;
+                    break;
+                }
+                markBlock(candidate, false);
+            }
+        }
+        IndexNode remapped = new IndexNode();
+        boolean fits = true;
+        int logical = 0;
+        for (int e = 0; e < inode.getExtentCount() && fits && found > 0; e++) {
+            int start = inode.getExtentStart(e);
+            int length = inode.getExtentLength(e);
+            int from = Math.min(Math.max(first, logical), logical + length);
+            int to = Math.max(Math.min(last, logical + length), from);
+            fits = addRun(remapped, start, from - logical);
+            for (int b = from; b < to && fits; b++) {
+                fits = addRun(remapped, shared[b - first] != 0 ? shared[b - first] : start + b - logical, 1);
+            }
+            fits = fits && addRun(remapped, start + to - logical, logical + length - to);
+            logical += length;
+        }
+        fits = fits && (found == 0 || reserveIndirect(inode, remapped.getExtentCount()));
+        if (!fits) {
+            for (int i = 0; i < shared.length; i++) {
+                if (shared[i] != 0) {
+                    markBlock(shared[i], false);
+                    shared[i] = 0;
+                }
+            }
+            found = 0;
+        }
+        // 共用的块之间的部分照常写入
+        int from = offset;
+        for (int b = first; b < last; b++) {
+            if (shared[b - first] == 0) {
+                continue;
+            }
+            if (from < b * blockSize) {
+                transfer(inode, content, pos + from - offset, from, b * blockSize, true);
+            }
+            from = (b + 1) * blockSize;
+            markBlock(bmap(inode, b), false);
+        }
+        if (from < end) {
+            transfer(inode, content, pos + from - offset, from, end, true);
+        }
+        if (found > 0) {
+            inode.clearExtents();
+            addRun(inode, remapped);
+            saveInode(inumber, inode);
+        }
+        synchronized (blockAllocLock) {
+            for (int b = first; b < last; b++) {
+                if (shared[b - first] == 0) {
+                    dedup.put(fingerprints[b - first], bmap(inode, b));
+                }
+            }
+        }
+        metrics.add("dedup.blocks.written", last - first);
+        metrics.add("dedup.blocks.shared", found);
+    }
+
+    /**
+     * 索引中的块仍有效且引用计数未到上限时引用计数加一,上限为 16 位减去快照表的项数
+     *
+     * @return 块不能再共用时返回 false
+     */
+    private boolean pin(int blockIndex) {
+        int index = blockIndex - superBlock.getDataStart();
+        synchronized (blockAllocLock) {
+            if (!dedup.isLive(blockIndex) || refcount(index) == 0 || refcount(index) >= 0xffff - blockSize / 32) {
+                return false;
+            }
+            refcounts[index]++;
+            writeRefcounts(index, index + 1);
+            return true;
+        }
+    }
+
+    /**
+     * 在文件末尾追加 [start, start + length) 的块,超过单个 extent 的长度时拆开
+     *
+     * @return extent 已满时返回 false
+     */
+    private static boolean addRun(IndexNode inode, int start, int length) {
+        while (length > 0) {
+            int n = inode.addExtent(start, length);
+            if (n == 0) {
+                return false;
+            }
+            start += n;
+            length -= n;
+        }
+        return true;
+    }
+
+    private static void addRun(IndexNode inode, IndexNode extents) {
+        for (int e = 0; e < extents.getExtentCount(); e++) {
+            addRun(inode, extents.getExtentStart(e), extents.getExtentLength(e));
+        }
+    }
+
+    /**
+     * 从数据区的第 hint 块开始查找长度不小于 want 的空闲段,到末尾后回绕,找不到时返回遇到的第一个空闲段。
+     * 调用者需持有 blockAllocLock
+     *
+     * @return 空闲段在位图中的起始位置,磁盘已满时返回 -1
+     */
+    private int findRun(int hint, int want) {
+        metrics.add("alloc.block.scans", 1);
+        int limit = superBlock.getDataBlocks();
+        int fallback = -1;
+        for (int from : new int[]{Math.min(hint, limit), 0}) {
+            int i = bitMap.nextClearBit(from);
+            while (i < limit) {
+                // 检查过的空闲段数
+                metrics.add("alloc.block.runs", 1);
+                int end = bitMap.nextSetBit(i);
+                if (end == -1 || end > limit) {
+                    end = limit;
+                }
+                if (end - i >= want) {
+                    return i;
+                }
+                if (fallback == -1) {
+                    fallback = i;
+                }
+                i = bitMap.nextClearBit(end);
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * 释放文件的所有数据块和间接 extent 块
+     */
+    private void freeBlocks(IndexNode inode) {
+        for (int e = 0; e < inode.getExtentCount(); e++) {
+            markBlocks(inode.getExtentStart(e), inode.getExtentLength(e), false);
+        }
+        if (inode.getIndirect() != 0) {
+            markBlock(inode.getIndirect(), false);
+            inode.setIndirect(0);
+        }
+        inode.clearExtents();
+    }
+
+    public boolean write(String filename, byte[] content, int offset) {
+        long start = System.nanoTime();
+        beginShared();
+        try {
+            int inumber = readOnly ? -1 : lookupPath(filename);
+            if (inumber == -1) {
+                return false;
+            }
+            ReentrantReadWriteLock.WriteLock lock = inodeLocks[inumber].writeLock();
+            lock.lock();
+            try {
+                IndexNode inode = getInode(inumber);
+                if (inode.getValid() != 0 && !inode.isDir()) {
+                    return write(inumber, content, offset);
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            end();
+            fsLock.readLock().unlock();
+            metrics.record("write", start);
+        }
+    }
+
+    /**
+     * 设置之后新建的普通文件是否压缩保存,记录在超级块中,已有的文件不变
+     *
+     * @return 挂载的是快照时返回 false
+     */
+    public boolean setCompression(boolean on) {
+        fsLock.writeLock().lock();
+        try {
+            if (readOnly) {
+                return false;
+            }
+            superBlock.setFeature(SuperBlock.FEATURE_COMPRESS, on);
+            begin();
+            writeMeta(0, superBlock.toBytes());
+            end();
+            return true;
+        } finally {
+            fsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 开启或关闭去重,记录在超级块中。第一次开启时从数据区分配引用计数表和去重索引,
+     * 关闭后已共用的块不变,再次开启时从磁盘读入索引
+     *
+     * @return 空间不足、磁盘没有位图或日志、或挂载的是快照时返回 false
+     */
+    public boolean setDedup(boolean on) {
+        fsLock.writeLock().lock();
+        try {
+            if (readOnly || !superBlock.hasBitmaps() || journal == null) {
+                return false;
+            }
+            awaitAsync();
+            if (on && dedup == null) {
+                checkpoint();
+                if (refcounts == null && !enableRefcounts()) {
+                    return false;
+                }
+                if (superBlock.getDedupBlocks() == 0 && !allocDedupIndex()) {
+                    return false;
+                }
+                DedupIndex index = readDedupIndex();
+                synchronized (blockAllocLock) {
+                    dedup = index;
+                }
+            } else if (!on && dedup != null) {
+                flushDedup();
+                synchronized (blockAllocLock) {
+                    dedup = null;
+                }
+            }
+            superBlock.setFeature(SuperBlock.FEATURE_DEDUP, on);
+            begin();
+            writeMeta(0, superBlock.toBytes());
+            end();
+            checkpoint();
+            return true;
+        } finally {
+            fsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return 是否开启了去重
+     */
+    public boolean isDedup() {
+        return dedup != null;
+    }
+
+    /**
+     * 把已有的普通文件改为压缩保存,或改回直接保存,内容不变
+     *
+     * @return 文件不存在、是目录、空间不足或挂载的是快照时返回 false,文件不变
+     */
+    public boolean setCompressed(String filename, boolean on) {
+        long start = System.nanoTime();
+        beginShared();
+        try {
+            int inumber = readOnly ? -1 : lookupPath(filename);
+            if (inumber == -1) {
+                return false;
+            }
+            ReentrantReadWriteLock.WriteLock lock = inodeLocks[inumber].writeLock();
+            lock.lock();
+            try {
+                IndexNode inode = getInode(inumber);
+                if (inode.getValid() == 0 || inode.isDir()) {
+                    return false;
+                }
+                if (inode.hasFlag(IndexNode.FLAG_COMPRESSED) == on) {
+                    return true;
+                }
+                if (!reserveIndirect(inode, inode.getExtentCount())) {
+                    return false;
+                }
+                if (!inode.isInlineData()) {
+                    int size = inode.getSize();
+                    if (on && !writeCompressed(inumber, inode, new byte[0], 0, size, size, true)) {
+                        return false;
+                    }
+                    if (!on && !decompress(inumber, inode)) {
+                        return false;
+                    }
+                }
+                inode.setFlag(IndexNode.FLAG_COMPRESSED, on);
+                saveInode(inumber, inode);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            end();
+            fsLock.readLock().unlock();
+            metrics.record("compress.convert", start);
+        }
+    }
+
+    /**
+     * 把压缩文件的内容解压到新分配的块中,再释放原来的块,之后调用者需去掉标志并保存 inode
+     *
+     * @return 空间不足或 extent 已满时返回 false,文件不变
+     */
+    private boolean decompress(int inumber, IndexNode inode) {
+        byte[] content = new byte[inode.getSize()];
+        readData(inode, content, 0, 0, content.length);
+        IndexNode fresh = new IndexNode();
+        if (!growFile(inumber, fresh, (content.length + blockSize - 1) / blockSize)) {
+            freeBlocks(fresh);
+            return false;
+        }
+        transfer(fresh, content, 0, 0, content.length, true);
+        awaitAsync(inumber);
+        freeBlocks(inode);
+        addRun(inode, fresh);
+        inode.setIndirect(fresh.getIndirect());
+        return true;
+    }
+
+    /**
+     * 打开文件,之后的读写不再解析路径
+     *
+     * @return 文件不存在或是目录时返回 null
+     */
+    public FileHandle open(String filename) {
+        return open(filename, FileHandle.DEFAULT_READ_AHEAD, FileHandle.DEFAULT_WRITE_BUFFER);
+    }
+
+    /**
+     * @param readAhead   顺序读的预读窗口字节数
+     * @param writeBuffer 合并小写入的缓冲区字节数
+     */
+    public FileHandle open(String filename, int readAhead, int writeBuffer) {
+        int inumber = stat(filename);
+        if (inumber == -1 || getInode(inumber).isDir()) {
+            return null;
+        }
+        return new FileHandle(this, inumber, readAhead, writeBuffer);
+    }
 
-        disk.write(0, superBlock);
+    public boolean read(String filename, byte[] content, int offset) {
+        long start = System.nanoTime();
+        fsLock.readLock().lock();
+        try {
+            int inumber = lookupPath(filename);
+            if (inumber == -1) {
+                return false;
+            }
+            ReentrantReadWriteLock.ReadLock lock = inodeLocks[inumber].readLock();
+            lock.lock();
+            try {
+                IndexNode inode = getInode(inumber);
+                if (inode.getValid() != 0 && !inode.isDir()) {
+                    read(inumber, content, offset);
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            fsLock.readLock().unlock();
+            metrics.record("read", start);
+        }
     }
 
     /**
-     * 挂载磁盘
+     * 异步读出整个文件。路径解析和 inode 读取在调用线程中完成,元数据通常已在缓存中;
+     * 数据块的读取按 extent 同时发出,不占用调用线程,块设备为 {@link AsyncDisk} 时才真正异步
      *
-     * @throws Exception 挂载失败错误
+     * @return 文件内容,文件不存在或是目录时为 null
      */
-    public void mount() throws Exception {
-
-        byte[] block = emptyBlock();
-        disk.read(0, block);
-        // 比较 MAGIC NUMBER
-        if (!(block[0] == (byte) 0xf0 && block[1] == (byte) 0xf0 && block[2] == (byte) 0x34 && block[3] == (byte) 0x10)) {
-            throw new Exception("挂载失败,无法识别该磁盘的文件系统");
-        }
-
-        inodeNum = Util.bytesToInt(Arrays.copyOfRange(block, 4, 8));
-        blockNum = Util.bytesToInt(Arrays.copyOfRange(block, 8, 12));
-
-        bitMap = new BitSet(blockNum);
-        // 恢复 bitMap
-        IndexNode inode;
-        for (int i = 1; i < inodeNum + 1; i++) {
-            disk.read(i, block);
-            // 遍历所有 inode
-            for (int j = 0; j < 512 / 32; j++) {
-                if (block[j * 32] == 1) {
-                    inode = getInode((i - 1) * 512 / 32 + j);
-                    for (int k = 0; k <= 5; k++) {
-                        int blockIndex = inode.getDirect(k);
-                        if (blockIndex > 0) {
-                            bitMap.set(blockIndex - inodeNum - 1);
-                        }
+    public CompletableFuture<byte[]> readAsync(String filename) {
+        long start = System.nanoTime();
+        fsLock.readLock().lock();
+        try {
+            int inumber = lookupPath(filename);
+            if (inumber == -1) {
+                return CompletableFuture.completedFuture(null);
+            }
+            ReentrantReadWriteLock.ReadLock lock = inodeLocks[inumber].readLock();
+            lock.lock();
+            try {
+                IndexNode inode = getInode(inumber);
+                if (inode.getValid() == 0 || inode.isDir()) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                byte[] content = new byte[inode.getSize()];
+                if (inode.hasFlag(IndexNode.FLAG_COMPRESSED) && !inode.isInlineData() && content.length > 0) {
+                    // 块组表同步读出,各组异步读出后解压
+                    byte[] header = emptyBlock();
+                    readFileBlock(inode, 0, header);
+                    int last = (content.length - 1) / chunkBytes();
+                    int blocks = 0;
+                    for (int i = 0; i <= last; i++) {
+                        blocks += header[8 + i] & 0xff;
                     }
+                    byte[] stored = new byte[blocks * blockSize];
+                    return trackAsync(inumber, "read.async", start,
+                            () -> transferAsync(inode, stored, 0, blockSize, blockSize + stored.length, false))
+                            .thenApply(v -> {
+                                decodeChunks(header, content.length, stored, 0, last, content, 0, 0, content.length);
+                                return content;
+                            });
                 }
+                return trackAsync(inumber, "read.async", start,
+                        () -> transferAsync(inode, content, 0, 0, content.length, false)).thenApply(v -> content);
+            } finally {
+                lock.unlock();
             }
+        } finally {
+            fsLock.readLock().unlock();
         }
-
     }
 
-    private int getFirstFreeInumber() {
-        for (int i = 1; i < inodeNum + 1; i++) {
-            byte[] block = emptyBlock();
-            disk.read(i, block);
-            // 遍历所有 inode
-            for (int j = 0; j < 512 / 32; j++) {
-                if (block[j * 32] == 0) {
-                    return (i - 1) * 512 / 32 + j;
+    /**
+     * 异步写入,语义与 {@link #write(String, byte[], int)} 相同。分配块和修改 inode 在调用线程中完成,
+     * 数据块的写入异步发出,完成前不能修改 content
+     *
+     * @return 是否写入成功
+     */
+    public CompletableFuture<Boolean> writeAsync(String filename, byte[] content, int offset) {
+        long start = System.nanoTime();
+        beginShared();
+        try {
+            int inumber = readOnly ? -1 : lookupPath(filename);
+            if (inumber == -1) {
+                return CompletableFuture.completedFuture(false);
+            }
+            ReentrantReadWriteLock.WriteLock lock = inodeLocks[inumber].writeLock();
+            lock.lock();
+            try {
+                IndexNode inode = getInode(inumber);
+                if (inode.getValid() == 0 || inode.isDir()) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                int length = content.length;
+                if (!inode.isDir() && offset + length <= inlineCapacity() || inode.isInlineData()
+                        || inode.hasFlag(IndexNode.FLAG_COMPRESSED) || offset > inode.getSize() || dedup != null) {
+                    // 内联保存的文件只修改 inode,压缩文件需先压缩,跳过的部分需先补零,去重需先比较内容,都同步完成
+                    boolean written = write(inumber, content, offset);
+                    metrics.record("write.async", start);
+                    return CompletableFuture.completedFuture(written);
+                }
+                if (!reserveIndirect(inode, inode.getExtentCount())
+                        || offset + length > inode.getSize() && !growFile(inumber, inode, (offset + length + blockSize - 1) / blockSize)
+                        || !unshare(inumber, inode, offset, offset + length)) {
+                    saveInode(inumber, inode);
+                    return CompletableFuture.completedFuture(false);
+                }
+                if (offset + length < inode.getSize()) {
+                    resize(inumber, offset + length);
                 }
+                inode.setSize(offset + length);
+                saveInode(inumber, inode);
+                return trackAsync(inumber, "write.async", start,
+                        () -> transferAsync(inode, content, 0, offset, offset + length, true)).thenApply(v -> true);
+            } finally {
+                lock.unlock();
             }
+        } finally {
+            end();
+            fsLock.readLock().unlock();
         }
-        return -1;
     }
 
-    private int getFirstFreeDataBlock() {
-        for (int i = 0; i < blockNum; i++) {
-            if (!bitMap.get(i)) {
-                bitMap.set(i);
-                return i + inodeNum + 1;
-            }
-        }
-        return -1;
+    /**
+     * 与 {@link #stat} 相同,路径上的目录通常已在缓存中,在调用线程中完成
+     */
+    public CompletableFuture<Integer> statAsync(String filename) {
+        return CompletableFuture.completedFuture(stat(filename));
     }
 
-    private byte[] emptyBlock() {
-        return new byte[512];
+    /**
+     * 发出 inode 上的异步读写并登记,完成时注销并记录耗时。调用者须持有该 inode 的锁
+     */
+    private CompletableFuture<Void> trackAsync(int inumber, String operation, long start, Supplier<CompletableFuture<Void>> io) {
+        asyncIo.incrementAndGet(inumber);
+        asyncIoTotal.incrementAndGet();
+        CompletableFuture<Void> future;
+        try {
+            future = io.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        return future.whenComplete((v, e) -> {
+            int left = asyncIo.decrementAndGet(inumber);
+            int total = asyncIoTotal.decrementAndGet();
+            if (left == 0 || total == 0) {
+                synchronized (asyncIoDone) {
+                    asyncIoDone.notifyAll();
+                }
+            }
+            metrics.record(operation, start);
+        });
     }
 
-    private IndexNode getRootInode() {
-        return getInode(0);
+    /**
+     * 等待 inode 上已发出的异步读写完成,之后才能释放或重用它的块
+     */
+    private void awaitAsync(int inumber) {
+        awaitZero(() -> asyncIo.get(inumber));
     }
 
-    public IndexNode getInode(int inodeIndex) {
-        int blockIndex = inodeIndex * 32 / 512 + 1;
-        int blockOffset = inodeIndex * 32 % 512;
-        byte[] block = emptyBlock();
-        disk.read(blockIndex, block);
-        return IndexNode.fromBytes(Arrays.copyOfRange(block, blockOffset, blockOffset + 32));
+    /**
+     * 等待所有已发出的异步读写完成
+     */
+    private void awaitAsync() {
+        awaitZero(asyncIoTotal::get);
     }
 
-    private String getParentPath(String filename) {
-        if (filename.equals("/") || filename.equals("")) return "/";
-        String[] path = splitPath(filename);
-        if (path.length == 1) {
-            return "/";
+    private void awaitZero(IntSupplier count) {
+        if (count.getAsInt() == 0) {
+            return;
         }
-        StringBuilder ret = new StringBuilder();
-        for (int i = 0; i < path.length - 1; i++) {
-            ret.append("/").append(path[i]);
+        synchronized (asyncIoDone) {
+            while (count.getAsInt() > 0) {
+                try {
+                    asyncIoDone.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public boolean unlink(String filename) {
+        long start = System.nanoTime();
+        beginShared();
+        try {
+            String[] path = splitPath(filename);
+            if (readOnly || path.length == 0) {
+                return false;
+            }
+            int parentInumber = lookupPath(getParentPath(filename));
+            if (parentInumber == -1) {
+                return false;
+            }
+            String name = path[path.length - 1];
+            ReentrantReadWriteLock.WriteLock dirLock = inodeLocks[parentInumber].writeLock();
+            dirLock.lock();
+            try {
+                if (!getInode(parentInumber).isDir()) {
+                    return false;
+                }
+                int inumber = lookupEntry(parentInumber, name);
+                if (inumber == -1) {
+                    return false;
+                }
+                ReentrantReadWriteLock.WriteLock lock = inodeLocks[inumber].writeLock();
+                lock.lock();
+                try {
+                    IndexNode inode = getInode(inumber);
+                    if (inode.isDir()) {
+                        return false;
+                    }
+                    // 先删除目录项,之后的路径查找不会再找到该 inode
+                    if (!removeEntry(parentInumber, name)) {
+                        return false;
+                    }
+                    dentries.putNegative(joinPath(path, path.length));
+                    awaitAsync(inumber);
+                    freeBlocks(inode);
+                    deleteInode(inumber);
+                    return true;
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                dirLock.unlock();
+            }
+        } finally {
+            end();
+            fsLock.readLock().unlock();
+            metrics.record("unlink", start);
         }
-        return ret.toString();
     }
 
     /**
-     * 创建一个新的文件
+     * 在目录中查找文件名
      *
-     * @param filename 文件名,不超过28个字节
+     * @return 文件的 inumber,不存在时返回 -1
      */
-    private int create(String filename, byte type) {
-        if (stat(filename) != -1) {
-            // 文件已存在
-            return -1;
-        }
-        String parent = getParentPath(filename);
-        String[] path = splitPath(filename);
-        int parentInumber = stat(parent);
-        if (parentInumber == -1) {
-            // 父目录不存在
+    private int lookupEntry(int dirInumber, String name) {
+        IndexNode dir = getInode(dirInumber);
+        if (dir.hasFlag(IndexNode.FLAG_HASHED_DIR)) {
+            // 哈希目录: 沿探测链逐个读入桶,遇到空槽即可确定不存在
+            int buckets = dir.getSize() / blockSize - 1;
+            int bucket = bucketOf(name, buckets);
+            byte[] block = emptyBlock();
+            for (int probe = 0; probe < buckets; probe++) {
+                readFileBlock(dir, 1 + bucket, block);
+                for (int i = 0; i < blockSize; i += 32) {
+                    if (block[i] == 0) {
+                        if (Util.getInt(block, i + 28) == 0) {
+                            return -1;
+                        }
+                        // 墓碑
+                        continue;
+                    }
+                    if (nameEquals(block, i, name)) {
+                        return Util.getInt(block, i + 28);
+                    }
+                }
+                bucket = (bucket + 1) % buckets;
+            }
             return -1;
         }
-        IndexNode parentInode = getInode(parentInumber);
-        if (!parentInode.isDir()) {
-            // 父文件不是目录
-            return -1;
+        byte[] bytes = new byte[dir.getSize()];
+        read(dirInumber, bytes, 0);
+        for (int i = 0; i < bytes.length; i += 32) {
+            if (bytes[i] != 0 && nameEquals(bytes, i, name)) {
+                return Util.getInt(bytes, i + 28);
+            }
         }
-        // 分配 inode
-        int inumber = getFirstFreeInumber();
-        IndexNode inode = getInode(inumber);
-        initInode(inode, type);
-        saveInode(inumber, inode);
-        // 目录项 32 字节
-        byte[] dir_item = new byte[32];
-        System.arraycopy(path[path.length - 1].getBytes(StandardCharsets.US_ASCII), 0, dir_item, 0, path[path.length - 1].length());
-        System.arraycopy(Util.intToBytes(inumber), 0, dir_item, 28, 4);
-        // 在目录文件中追加一个目录项
-        write(parentInumber, dir_item, parentInode.getSize());
-        return inumber;
+        return -1;
     }
 
-    public int stat(String filename) {
-        if (filename.equals("/")) return 0;
-        IndexNode inode = getRootInode();
-        int inumber = 0;
-        String[] path = splitPath(filename);
-        for (String s : path) {
-            if (inode.getType() != 1) {
-                // 不是目录
-                return -1;
-            }
-            byte[] bytes = new byte[inode.getSize()];
-            read(inumber, bytes, 0);
-            boolean find = false;
-            for (int i = 0; i < inode.getSize() / 32; i++) {
-                String searchFilename = Util.buildString(bytes, i * 32, 28);
-                if (s.equals(searchFilename)) {
-                    inumber = Util.bytesToInt(Arrays.copyOfRange(bytes, i * 32 + 28, i * 32 + 32));
-                    inode = getInode(inumber);
-                    find = true;
-                    break;
-                }
-            }
-            if (!find) {
-                return -1;
+    /**
+     * 在目录中添加一个目录项,调用者需保证文件名不存在。
+     * 线性目录优先复用空槽,超过一个块时转换为哈希目录
+     */
+    private boolean addEntry(int dirInumber, byte[] item) {
+        IndexNode dir = getInode(dirInumber);
+        if (dir.hasFlag(IndexNode.FLAG_HASHED_DIR)) {
+            return addHashedEntry(dirInumber, dir, item);
+        }
+        byte[] bytes = new byte[dir.getSize()];
+        read(dirInumber, bytes, 0);
+        for (int i = 0; i < bytes.length; i += 32) {
+            if (bytes[i] == 0) {
+                byte[] block = emptyBlock();
+                readFileBlock(dir, i / blockSize, block);
+                System.arraycopy(item, 0, block, i % blockSize, 32);
+                return writeFileBlock(dirInumber, dir, i / blockSize, block);
             }
         }
-        return inumber;
+        if (bytes.length / 32 < blockSize / 32) {
+            return write(dirInumber, item, dir.getSize());
+        }
+        byte[] entries = Arrays.copyOf(bytes, bytes.length + 32);
+        System.arraycopy(item, 0, entries, bytes.length, 32);
+        return rebuildHashedDir(dirInumber, entries, HASH_DIR_MIN_BUCKETS);
     }
 
-    private void read(int inumber, byte[] content, int offset) {
-        IndexNode inode = getInode(inumber);
-        int length = content.length;
-        int blockIndex = inode.getDirect(offset / 512);
+    private boolean addHashedEntry(int dirInumber, IndexNode dir, byte[] item) {
+        int buckets = dir.getSize() / blockSize - 1;
+        byte[] header = emptyBlock();
+        readFileBlock(dir, 0, header);
+        int entries = Util.getInt(header, 4);
+        int tombstones = Util.getInt(header, 8);
+        if ((entries + tombstones + 1) * 4 > buckets * 16 * 3) {
+            // 装载因子超过 3/4 时重建,清除墓碑,目录项过多时桶数翻倍
+            byte[] live = readEntries(dirInumber);
+            byte[] all = Arrays.copyOf(live, live.length + 32);
+            System.arraycopy(item, 0, all, live.length, 32);
+            return rebuildHashedDir(dirInumber, all, buckets);
+        }
+        int bucket = bucketOf(Util.buildString(item, 0, 28), buckets);
         byte[] block = emptyBlock();
-        disk.read(blockIndex, block);
-
-        int p = offset;
-        while (p < offset + length && p < inode.getSize()) {
-            if (inode.getDirect(p / 512) != blockIndex) {
-                blockIndex = inode.getDirect(p / 512);
-                disk.read(blockIndex, block);
+        while (true) {
+            readFileBlock(dir, 1 + bucket, block);
+            for (int i = 0; i < blockSize; i += 32) {
+                if (block[i] == 0) {
+                    if (Util.getInt(block, i + 28) != 0) {
+                        tombstones--;
+                    }
+                    System.arraycopy(item, 0, block, i, 32);
+                    // 头部先按部分写入换掉并复制原内容,写桶失败时目录不变,之后写头部不会失败
+                    if (!unshare(dirInumber, dir, 0, 1) || !writeFileBlock(dirInumber, dir, 1 + bucket, block)) {
+                        return false;
+                    }
+                    Util.putInt(header, 4, entries + 1);
+                    Util.putInt(header, 8, tombstones);
+                    return writeFileBlock(dirInumber, dir, 0, header);
+                }
             }
-            int blockOffset = p % 512;
-            content[p - offset] = block[blockOffset];
-            p++;
+            bucket = (bucket + 1) % buckets;
         }
     }
 
-    private void write(int inumber, byte[] content, int offset) {
-        IndexNode inode = getInode(inumber);
-        int length = content.length;
-
-        if (offset + length > inode.getSize()) {
-            // 如果写入的部分超出文件长度重新分配磁盘块
-            for (int i = 0; i <= (offset + length - 1) / 512 && i <= 5; i++) {
-                if (inode.getDirect(i) == 0) {
-                    inode.setDirect(i, getFirstFreeDataBlock());
+    /**
+     * 从目录中删除一个目录项,只修改该目录项所在的块
+     *
+     * @return 目录项不存在或空间不足以复制共用的块时返回 false
+     */
+    private boolean removeEntry(int dirInumber, String name) {
+        IndexNode dir = getInode(dirInumber);
+        byte[] block = emptyBlock();
+        if (dir.hasFlag(IndexNode.FLAG_HASHED_DIR)) {
+            int buckets = dir.getSize() / blockSize - 1;
+            int bucket = bucketOf(name, buckets);
+            for (int probe = 0; probe < buckets; probe++) {
+                readFileBlock(dir, 1 + bucket, block);
+                for (int i = 0; i < blockSize; i += 32) {
+                    if (block[i] == 0) {
+                        if (Util.getInt(block, i + 28) == 0) {
+                            return false;
+                        }
+                        continue;
+                    }
+                    if (nameEquals(block, i, name)) {
+                        // 标记为墓碑,保持探测链不断开
+                        Arrays.fill(block, i, i + 28, (byte) 0);
+                        Util.putInt(block, i + 28, -1);
+                        byte[] header = emptyBlock();
+                        readFileBlock(dir, 0, header);
+                        if (!unshare(dirInumber, dir, 0, 1) || !writeFileBlock(dirInumber, dir, 1 + bucket, block)) {
+                            return false;
+                        }
+                        Util.putInt(header, 4, Util.getInt(header, 4) - 1);
+                        Util.putInt(header, 8, Util.getInt(header, 8) + 1);
+                        return writeFileBlock(dirInumber, dir, 0, header);
+                    }
                 }
+                bucket = (bucket + 1) % buckets;
             }
+            return false;
         }
-
-        inode.setSize(offset + length);
-        saveInode(inumber, inode);
-
-        int blockIndex = inode.getDirect(offset / 512);
-        byte[] block = emptyBlock();
-        disk.read(blockIndex, block);
-        int p = offset;
-        while (p < offset + length) {
-            if (inode.getDirect(p / 512) != blockIndex) {
-                disk.write(blockIndex, block);
-                blockIndex = inode.getDirect(p / 512);
-                disk.read(blockIndex, block);
+        for (int b = 0; b * blockSize < dir.getSize(); b++) {
+            readFileBlock(dir, b, block);
+            int end = Math.min(blockSize, dir.getSize() - b * blockSize);
+            for (int i = 0; i < end; i += 32) {
+                if (block[i] != 0 && nameEquals(block, i, name)) {
+                    // 线性目录直接清空该槽,留给之后的目录项复用
+                    Arrays.fill(block, i, i + 32, (byte) 0);
+                    return writeFileBlock(dirInumber, dir, b, block);
+                }
             }
-            int blockOffset = p % 512;
-            block[blockOffset] = content[p - offset];
-            p++;
         }
-        disk.write(blockIndex, block);
+        return false;
     }
 
-    public boolean write(String filename, byte[] content, int offset) {
-        int inumber = stat(filename);
-        if (inumber == -1) {
-            return false;
-        }
-        IndexNode inode = getInode(inumber);
-        if (!inode.isDir()) {
-            write(inumber, content, offset);
-            return true;
+    /**
+     * 读出目录中所有有效的目录项,每项 32 字节紧密排列
+     */
+    private byte[] readEntries(int dirInumber) {
+        IndexNode dir = getInode(dirInumber);
+        byte[] bytes = new byte[dir.getSize()];
+        read(dirInumber, bytes, 0);
+        int from = dir.hasFlag(IndexNode.FLAG_HASHED_DIR) ? blockSize : 0;
+        int count = 0;
+        for (int i = from; i < bytes.length; i += 32) {
+            if (bytes[i] != 0) {
+                System.arraycopy(bytes, i, bytes, count * 32, 32);
+                count++;
+            }
         }
-        return false;
+        return Arrays.copyOf(bytes, count * 32);
     }
 
-    public boolean read(String filename, byte[] content, int offset) {
-        int inumber = stat(filename);
-        if (inumber == -1) {
+    /**
+     * 用给定的目录项重写为哈希目录: 0 号块为头部,之后为 buckets 个桶
+     * <pre>
+     * 头部: 0 MAGIC, 4 目录项数, 8 墓碑数
+     * </pre>
+     *
+     * @return 空间不足或重建后的目录超出单个操作可记入日志的块数时返回 false,目录不变
+     */
+    private boolean rebuildHashedDir(int dirInumber, byte[] entries, int buckets) {
+        int count = entries.length / 32;
+        while (count * 4 > buckets * 16 * 3) {
+            buckets *= 2;
+        }
+        if (journal != null && 1 + buckets > journal.getMaxOperationBlocks()) {
+            // 重建的目录一次记入日志,不能超出日志区
+            metrics.add("dir.too.large", 1);
             return false;
         }
-        IndexNode inode = getInode(inumber);
-        if (!inode.isDir()) {
-            read(inumber, content, offset);
-            return true;
+        byte[] bytes = new byte[(1 + buckets) * blockSize];
+        Util.putInt(bytes, 0, HASH_DIR_MAGIC);
+        Util.putInt(bytes, 4, count);
+        for (int e = 0; e < count; e++) {
+            int bucket = bucketOf(Util.buildString(entries, e * 32, 28), buckets);
+            int p = (1 + bucket) * blockSize;
+            while (bytes[p] != 0) {
+                p += 32;
+                if (p == bytes.length) {
+                    p = blockSize;
+                }
+            }
+            System.arraycopy(entries, e * 32, bytes, p, 32);
         }
-        return false;
+        IndexNode dir = getInode(dirInumber);
+        dir.setFlag(IndexNode.FLAG_HASHED_DIR, true);
+        return write(dirInumber, bytes, 0);
     }
 
-    public boolean unlink(String filename) {
-        int inumber = stat(filename);
-        if (inumber == -1) {
-            return false;
+    private static int bucketOf(String name, int buckets) {
+        // FNV-1a
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x01000193;
         }
+        return (hash & 0x7fffffff) % buckets;
+    }
 
-        IndexNode inode = getInode(inumber);
-
-        if (inode.isDir()) {
+    /**
+     * 比较 bytes[offset] 处以 '\0' 结尾(最长 28 字节)的文件名,不构造字符串
+     */
+    private static boolean nameEquals(byte[] bytes, int offset, String name) {
+        int length = name.length();
+        if (length > 28) {
             return false;
         }
-
-        for (int i = 0; i <= 5; i++) {
-            int direct = inode.getDirect(i);
-            if (direct > 0) {
-                bitMap.clear(direct - inodeNum - 1);
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != name.charAt(i)) {
+                return false;
             }
         }
+        return length == 28 || bytes[offset + length] == 0;
+    }
 
-        deleteInode(inumber);
-
-        String parent = getParentPath(filename);
-        inumber = stat(parent);
-        inode = getInode(inumber);
+    private void readFileBlock(IndexNode inode, int fileBlock, byte[] block) {
+        disk.read(bmap(inode, fileBlock), block);
+    }
 
-        // 删除目录项
-        byte[] bytes = new byte[inode.getSize()];
-        byte[] newBytes = new byte[inode.getSize() - 32];
-        read(inumber, bytes, 0);
-        int index = 0;
-        for (int i = 0; i < inode.getSize() / 32; i++) {
-            String searchFilename = Util.buildString(bytes, i * 32, 28);
-            if (!filename.equals(searchFilename)) {
-                System.arraycopy(bytes, i * 32, newBytes, index * 32, 32);
-                index++;
-            }
+    /**
+     * 写入目录的一个块,与快照共用时先换成新的块
+     *
+     * @return 空间不足时返回 false,目录不变
+     */
+    private boolean writeFileBlock(int inumber, IndexNode inode, int fileBlock, byte[] block) {
+        if (!unshare(inumber, inode, fileBlock * blockSize, (fileBlock + 1) * blockSize)) {
+            return false;
         }
-        write(inumber, newBytes, 0);
+        writeMeta(bmap(inode, fileBlock), block);
         return true;
     }
 
+    /**
+     * 用路径的前 count 个部分拼出规范化的路径,作为目录项缓存的键
+     */
+    private String joinPath(String[] path, int count) {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            ret.append('/').append(path[i]);
+        }
+        return ret.toString();
+    }
+
     private String[] splitPath(String path) {
         if (path.equals("")) {
             return new String[]{};
@@ -328,66 +3368,200 @@ public class SimpleFileSystem {
         return path.split("/");
     }
 
+    /**
+     * 列出目录中的文件名
+     *
+     * @return 目录不存在或不是目录时返回 null
+     */
+    public String[] list(String dirName) {
+        fsLock.readLock().lock();
+        try {
+            int inumber = lookupPath(dirName);
+            if (inumber == -1) {
+                return null;
+            }
+            ReentrantReadWriteLock.ReadLock lock = inodeLocks[inumber].readLock();
+            lock.lock();
+            try {
+                if (!getInode(inumber).isDir()) {
+                    return null;
+                }
+                byte[] bytes = readEntries(inumber);
+                String[] names = new String[bytes.length / 32];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = Util.buildString(bytes, i * 32, 28);
+                }
+                return names;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            fsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 列出目录中的文件及其类型、大小和块数。目录项在调用时一次读出并按 inumber 排序,
+     * 属性在遍历时每 {@value #READDIR_BATCH} 项读取一次,每个 inode 块只读一次。遍历期间被删除的文件跳过
+     *
+     * @return 按 inumber 顺序遍历,目录不存在或不是目录时返回 null
+     */
+    public Iterator<DirEntry> readdir(String dirName) {
+        long start = System.nanoTime();
+        fsLock.readLock().lock();
+        try {
+            int inumber = lookupPath(dirName);
+            if (inumber == -1) {
+                return null;
+            }
+            ReentrantReadWriteLock.ReadLock lock = inodeLocks[inumber].readLock();
+            lock.lock();
+            try {
+                if (!getInode(inumber).isDir()) {
+                    return null;
+                }
+                return new DirIterator(readEntries(inumber));
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            fsLock.readLock().unlock();
+            metrics.record("readdir", start);
+        }
+    }
+
+    private class DirIterator implements Iterator<DirEntry> {
+        private final byte[] entries;
+        /**
+         * 高 32 位为 inumber,低 32 位为目录项的序号,按升序排列
+         */
+        private final long[] order;
+        /**
+         * 当前批次的结果,被删除的项为 null
+         */
+        private final DirEntry[] batch;
+        private final int[] inumbers;
+        private int fetched;
+        private int batchSize;
+        private int position;
+        private DirEntry next;
+
+        DirIterator(byte[] entries) {
+            this.entries = entries;
+            this.order = new long[entries.length / 32];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = (long) Util.getInt(entries, i * 32 + 28) << 32 | i;
+            }
+            Arrays.sort(order);
+            this.batch = new DirEntry[Math.min(order.length, READDIR_BATCH)];
+            this.inumbers = new int[batch.length];
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (position == batchSize) {
+                    if (fetched == order.length) {
+                        return false;
+                    }
+                    fetch();
+                }
+                next = batch[position++];
+            }
+            return true;
+        }
+
+        @Override
+        public DirEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            DirEntry ret = next;
+            next = null;
+            return ret;
+        }
+
+        private void fetch() {
+            int n = Math.min(batch.length, order.length - fetched);
+            int valid = 0;
+            for (int i = 0; i < n; i++) {
+                int inumber = (int) (order[fetched + i] >> 32);
+                if (inumber >= 0 && inumber < inodeLocks.length) {
+                    inumbers[valid++] = inumber;
+                }
+            }
+            fsLock.readLock().lock();
+            try {
+                loadInodes(inumbers, valid);
+                for (int i = 0; i < n; i++) {
+                    int inumber = (int) (order[fetched + i] >> 32);
+                    int p = (int) order[fetched + i] * 32;
+                    batch[i] = null;
+                    if (inumber < 0 || inumber >= inodeLocks.length) {
+                        continue;
+                    }
+                    ReentrantReadWriteLock.ReadLock lock = inodeLocks[inumber].readLock();
+                    lock.lock();
+                    try {
+                        IndexNode inode = getInode(inumber);
+                        if (inode.getValid() != 0) {
+                            batch[i] = new DirEntry(Util.buildString(entries, p, 28), inumber, inode);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                fsLock.readLock().unlock();
+            }
+            fetched += n;
+            batchSize = n;
+            position = 0;
+        }
+    }
+
     /**
      * DEBUG ONLY
      *
      * @param filename 文件名
      */
     public void ls(String filename) {
-        int inumber = stat(filename);
-        if (inumber == -1) {
-            System.out.println(filename + " is not exist.");
+        Iterator<DirEntry> it = readdir(filename);
+        if (it == null) {
+            System.out.println(filename + (stat(filename) == -1 ? " is not exist." : " is not a directory."));
             return;
         }
-        IndexNode inode = getInode(inumber);
-        if (!inode.isDir()) {
-            System.out.println(filename + " is not a directory.");
-            return;
-        }
-
-        byte[] bytes = new byte[inode.getSize()];
-        read(inumber, bytes, 0);
-        for (int i = 0; i < inode.getSize() / 32; i++) {
-            String searchFilename = Util.buildString(bytes, i * 32, 28);
-            int fileInumber = Util.bytesToInt(Arrays.copyOfRange(bytes, i * 32 + 28, i * 32 + 32));
-            IndexNode fileInode = getInode(fileInumber);
-            System.out.println((fileInode.isDir() ? "d " : "- ") + searchFilename);
+        while (it.hasNext()) {
+            System.out.println(it.next());
         }
     }
 
     public void cat(String filename, int mode) {
-        int inumber = stat(filename);
-        if (inumber == -1) {
-            System.out.println(filename + " is not exist.");
-            return;
-        }
-        IndexNode inode = getInode(inumber);
-        if (inode.isDir()) {
-            System.out.println(filename + " is a directory.");
+        FileHandle handle = open(filename);
+        if (handle == null) {
+            // 不存在、已被删除或是目录
+            System.out.println(filename + (stat(filename) == -1 ? " is not exist." : " is a directory."));
             return;
         }
-        byte[] content = new byte[inode.getSize()];
-        if (mode == 0) {
-            if (read(filename, content, 0)) {
-                System.out.println(new String(content, StandardCharsets.US_ASCII));
-            } else {
-                System.out.println("fail.");
-            }
-        } else if (mode == 1) {
+        byte[] buffer = new byte[4096];
+        try (InputStream in = handle.newInputStream()) {
             int index = 0;
-            if (read(filename, content, 0)) {
-                for (int i = 0; i < content.length / 16 + 1; i++) {
-                    for (int j = 0; j < 16; j++) {
-                        if (index >= content.length) {
-                            break;
-                        }
-                        System.out.printf("%02x ", content[index++]);
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (mode == 0) {
+                    System.out.print(new String(buffer, 0, n, StandardCharsets.US_ASCII));
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    System.out.printf("%02x ", buffer[i]);
+                    if (++index % 16 == 0) {
+                        System.out.print('\n');
                     }
-                    System.out.print('\n');
                 }
-            } else {
-                System.out.println("fail.");
             }
+            System.out.print('\n');
+        } catch (IOException e) {
+            System.out.println("fail.");
         }
     }
 
@@ -395,28 +3569,49 @@ public class SimpleFileSystem {
         inode.setValid((byte) 1);
         inode.setType(type);
         inode.setSize(0);
-        inode.setDirect0(0);
-        inode.setDirect1(0);
-        inode.setDirect2(0);
-        inode.setDirect3(0);
-        inode.setDirect4(0);
-        inode.setDirect5(0);
+        inode.clearExtents();
+        inode.setIndirect(0);
     }
 
+    /**
+     * 调用者需持有该 inode 的写锁
+     */
     private void saveInode(int inumber, IndexNode inode) {
-        int blockIndex = inumber * 32 / 512 + 1;
+        inodeTable.set(inumber, inode);
         byte[] block = emptyBlock();
-        disk.read(blockIndex, block);
-        System.arraycopy(inode.toBytes(), 0, block, inumber * 32, 32);
-        disk.write(blockIndex, block);
+        if (inode.getExtentCount() > IndexNode.INLINE_EXTENTS) {
+            if (inode.getIndirect() == 0) {
+                // 调用者应先用 reserveIndirect 分配
+                throw new IllegalStateException("inode " + inumber + " 没有间接 extent 块");
+            }
+            inode.encodeIndirect(block);
+            writeMeta(inode.getIndirect(), block);
+        } else if (inode.getIndirect() != 0) {
+            markBlock(inode.getIndirect(), false);
+            inode.setIndirect(0);
+        }
+        int blockIndex = inodeBlockOf(inumber);
+        synchronized (inodeBlockLock(blockIndex)) {
+            disk.read(blockIndex, block);
+            inode.encode(block, inodeOffsetOf(inumber), inodeSize);
+            writeMeta(blockIndex, block);
+        }
     }
 
     private void deleteInode(int inumber) {
-        int blockIndex = inumber * 32 / 512 + 1;
+        IndexNode inode = inodeTable.get(inumber);
+        if (inode != null) {
+            inode.setValid((byte) 0);
+        }
+        int blockIndex = inodeBlockOf(inumber);
         byte[] block = emptyBlock();
-        disk.read(blockIndex, block);
-        block[inumber * 32] = 0;
-        disk.write(blockIndex, block);
+        synchronized (inodeBlockLock(blockIndex)) {
+            disk.read(blockIndex, block);
+            block[inodeOffsetOf(inumber)] = 0;
+            writeMeta(blockIndex, block);
+        }
+        // 最后释放 inumber,之后才可能被其他线程重新分配
+        markInode(inumber, false);
     }
 
     public int mkdir(String dirName) {
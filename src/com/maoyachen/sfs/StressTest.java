@@ -0,0 +1,282 @@
+package com.maoyachen.sfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多线程压力测试,依次以 1, 2, 4 ... 个线程运行相同的负载,校验一致性并输出吞吐量。
+ * <p>
+ * 每个线程在自己的文件上随机读写并与内存中的副本比对,同时在共享目录中创建、删除文件,
+ * 并以整条记录为单位读写一个共享的热点文件,读出的记录必须不被其他线程的写入撕裂。
+ * 结束后重新挂载,再次比对所有文件。
+ * <pre>
+ * 用法: StressTest [--mmap] [--threads=N] [--ops=N] [--block-size=N] &lt;disk&gt;
+ * </pre>
+ */
+public class StressTest {
+    private static final int DISK_SIZE = 10 * 1024 * 1024;
+    private static final int FILES_PER_THREAD = 4;
+    private static final int MAX_FILE_SIZE = 32 * 1024;
+    private static final int MAX_WRITE = 4096;
+    private static final int SHARED_NAMES = 16;
+    private static final int HOT_RECORDS = 64;
+    private static final int RECORD = 512;
+
+    private final BlockDevice disk;
+    private final SimpleFileSystem fs;
+    private final AtomicLong errors = new AtomicLong();
+
+    private StressTest(BlockDevice disk, int blockSize) {
+        this.disk = disk;
+        this.fs = new SimpleFileSystem(disk);
+        if (!fs.format(blockSize, SimpleFileSystem.DEFAULT_INODES)) {
+            throw new IllegalArgumentException("invalid block size: " + blockSize);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean mmap = false;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        int ops = 20000;
+        int blockSize = BlockDevice.DEFAULT_BLOCK_SIZE;
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("--mmap")) {
+                mmap = true;
+            } else if (arg.startsWith("--threads=")) {
+                maxThreads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--ops=")) {
+                ops = Integer.parseInt(arg.substring("--ops=".length()));
+            } else if (arg.startsWith("--block-size=")) {
+                blockSize = Integer.parseInt(arg.substring("--block-size=".length()));
+            } else {
+                path = arg;
+            }
+        }
+        if (path == null) {
+            System.out.println("usage: StressTest [--mmap] [--threads=N] [--ops=N] [--block-size=N] <disk>");
+            return;
+        }
+        BlockDevice disk = mmap ? new MappedDisk(path, DISK_SIZE) : new Disk(path, DISK_SIZE);
+        long failed = 0;
+        double base = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            StressTest test = new StressTest(disk, blockSize);
+            double rate = test.run(threads, ops);
+            if (threads == 1) {
+                base = rate;
+            }
+            System.out.printf("threads %2d  %10.0f ops/s  x%.2f  errors %d%n",
+                    threads, rate, rate / base, test.errors.get());
+            failed += test.errors.get();
+            if (threads == maxThreads) {
+                break;
+            }
+        }
+        disk.close();
+        if (failed > 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @return 每秒完成的操作数
+     */
+    private double run(int threads, int ops) throws Exception {
+        fs.mkdir("/shared");
+        fs.touch("/hot");
+        fs.write("/hot", new byte[HOT_RECORDS * RECORD], 0);
+
+        Worker[] workers = new Worker[threads];
+        Thread[] running = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, ops);
+            workers[i].setUp();
+            running[i] = new Thread(workers[i], "stress-" + i);
+        }
+        long start = System.nanoTime();
+        for (Thread t : running) {
+            t.start();
+        }
+        for (Thread t : running) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (Worker worker : workers) {
+            worker.verify(fs);
+        }
+        // 写回后在同一设备上重新挂载,再次校验,确认磁盘上的元数据一致
+        fs.sync();
+        SimpleFileSystem remounted = new SimpleFileSystem(disk);
+        remounted.mount();
+        for (Worker worker : workers) {
+            worker.verify(remounted);
+        }
+        return (double) threads * ops * 1e9 / elapsed;
+    }
+
+    private void fail(String message) {
+        errors.incrementAndGet();
+        System.out.println("  " + Thread.currentThread().getName() + ": " + message);
+    }
+
+    private class Worker implements Runnable {
+        private final int id;
+        private final int ops;
+        private final Random random;
+        private final FileHandle[] handles = new FileHandle[FILES_PER_THREAD];
+        private final byte[][] models = new byte[FILES_PER_THREAD][MAX_FILE_SIZE];
+        private final int[] sizes = new int[FILES_PER_THREAD];
+        private final boolean[] shared = new boolean[SHARED_NAMES];
+        private FileHandle hot;
+
+        Worker(int id, int ops) {
+            this.id = id;
+            this.ops = ops;
+            this.random = new Random(id);
+        }
+
+        private String fileName(int i) {
+            return "/t" + id + "_" + i;
+        }
+
+        private String sharedName(int i) {
+            return "/shared/s" + id + "_" + i;
+        }
+
+        void setUp() {
+            for (int i = 0; i < FILES_PER_THREAD; i++) {
+                fs.touch(fileName(i));
+                handles[i] = fs.open(fileName(i));
+            }
+            // 记录大小的预读窗口且不合并写入,每次读写都直接落到文件系统
+            hot = fs.open("/hot", RECORD, 0);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int op = 0; op < ops; op++) {
+                    int dice = random.nextInt(100);
+                    if (dice < 35) {
+                        writeOwn();
+                    } else if (dice < 70) {
+                        readOwn();
+                    } else if (dice < 80) {
+                        writeHot();
+                    } else if (dice < 90) {
+                        readHot();
+                    } else {
+                        toggleShared();
+                    }
+                }
+                for (FileHandle handle : handles) {
+                    handle.close();
+                }
+                hot.close();
+            } catch (IOException e) {
+                fail(e.toString());
+            }
+        }
+
+        private void writeOwn() throws IOException {
+            int f = random.nextInt(FILES_PER_THREAD);
+            int length = 1 + random.nextInt(MAX_WRITE);
+            int offset = random.nextInt(MAX_FILE_SIZE - length);
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            handles[f].position(offset);
+            handles[f].write(ByteBuffer.wrap(data));
+            System.arraycopy(data, 0, models[f], offset, length);
+            sizes[f] = Math.max(sizes[f], offset + length);
+        }
+
+        private void readOwn() throws IOException {
+            int f = random.nextInt(FILES_PER_THREAD);
+            int offset = random.nextInt(MAX_FILE_SIZE);
+            int length = 1 + random.nextInt(MAX_WRITE);
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            handles[f].position(offset);
+            while (buffer.hasRemaining() && handles[f].read(buffer) > 0) {
+                // 读满或读到文件末尾
+            }
+            int expected = Math.max(0, Math.min(length, sizes[f] - offset));
+            if (buffer.position() != expected) {
+                fail(fileName(f) + " read " + buffer.position() + " bytes at " + offset + ", expected " + expected);
+                return;
+            }
+            if (!Arrays.equals(buffer.array(), 0, expected, models[f], offset, offset + expected)) {
+                fail(fileName(f) + " content mismatch at " + offset);
+            }
+        }
+
+        /**
+         * 整条记录填充同一个字节
+         */
+        private void writeHot() throws IOException {
+            byte[] record = new byte[RECORD];
+            Arrays.fill(record, (byte) (1 + random.nextInt(255)));
+            hot.position((long) random.nextInt(HOT_RECORDS) * RECORD);
+            hot.write(ByteBuffer.wrap(record));
+        }
+
+        private void readHot() throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(RECORD);
+            int index = random.nextInt(HOT_RECORDS);
+            hot.position((long) index * RECORD);
+            if (hot.read(record) != RECORD) {
+                fail("/hot short read at record " + index);
+                return;
+            }
+            byte[] bytes = record.array();
+            for (int i = 1; i < RECORD; i++) {
+                if (bytes[i] != bytes[0]) {
+                    fail("/hot torn record " + index);
+                    return;
+                }
+            }
+        }
+
+        private void toggleShared() {
+            int i = random.nextInt(SHARED_NAMES);
+            if (shared[i]) {
+                if (!fs.unlink(sharedName(i))) {
+                    fail("unlink " + sharedName(i) + " failed");
+                }
+            } else if (fs.touch(sharedName(i)) == -1) {
+                fail("touch " + sharedName(i) + " failed");
+            }
+            shared[i] = !shared[i];
+        }
+
+        void verify(SimpleFileSystem target) {
+            for (int f = 0; f < FILES_PER_THREAD; f++) {
+                int inumber = target.stat(fileName(f));
+                if (inumber == -1) {
+                    fail(fileName(f) + " missing");
+                    continue;
+                }
+                if (target.getInode(inumber).getSize() != sizes[f]) {
+                    fail(fileName(f) + " size " + target.getInode(inumber).getSize() + ", expected " + sizes[f]);
+                    continue;
+                }
+                byte[] content = new byte[sizes[f]];
+                target.read(fileName(f), content, 0);
+                if (!Arrays.equals(content, 0, sizes[f], models[f], 0, sizes[f])) {
+                    fail(fileName(f) + " content mismatch after run");
+                }
+            }
+            for (int i = 0; i < SHARED_NAMES; i++) {
+                if ((target.stat(sharedName(i)) != -1) != shared[i]) {
+                    fail(sharedName(i) + (shared[i] ? " missing" : " not removed"));
+                }
+            }
+        }
+    }
+}
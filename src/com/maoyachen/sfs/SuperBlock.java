@@ -0,0 +1,273 @@
+package com.maoyachen.sfs;
+
+/**
+ * 超级块,位于 0 号块,字段都在前 512 字节内,挂载时先按 512 字节读出再按其中的块大小访问磁盘
+ * <pre>
+ * 0  MAGIC NUMBER
+ * 4  inode 块数
+ * 8  数据块数
+ * 12 inode 位图起始块
+ * 16 inode 位图块数
+ * 20 数据块位图起始块
+ * 24 数据块位图块数
+ * 28 第一个数据块
+ * 32 日志区起始块
+ * 36 日志区块数
+ * 40 块大小
+ * 44 inode 大小
+ * 48 磁盘总块数
+ * 52 引用计数表起始块
+ * 56 引用计数表块数
+ * 60 快照表所在块
+ * 64 特性位
+ * 68 去重索引起始块
+ * 72 去重索引块数
+ * </pre>
+ * 旧版本磁盘 12 之后全为 0,没有位图,数据区紧跟 inode 块;32 之后为 0 的磁盘没有日志;
+ * 40 之后为 0 的磁盘块大小为 512 字节,inode 大小为 32 字节;
+ * 52 之后为 0 的磁盘没有引用计数表和快照,二者在第一次创建快照时从数据区分配;
+ * 去重索引在第一次开启去重时从数据区分配
+ */
+public class SuperBlock {
+    public static final int MAGIC = 0x1034f0f0;
+    /**
+     * 新建的普通文件默认压缩保存
+     */
+    public static final int FEATURE_COMPRESS = 1;
+    /**
+     * 写入的整块按内容去重
+     */
+    public static final int FEATURE_DEDUP = 2;
+
+    private int magic;
+    private int inodeBlocks;
+    private int dataBlocks;
+    private int inodeBitmapStart;
+    private int inodeBitmapBlocks;
+    private int blockBitmapStart;
+    private int blockBitmapBlocks;
+    private int dataStart;
+    private int journalStart;
+    private int journalBlocks;
+    private int blockSize;
+    private int inodeSize;
+    private int totalBlocks;
+    private int refcountStart;
+    private int refcountBlocks;
+    private int snapshotTable;
+    private int features;
+    private int dedupStart;
+    private int dedupBlocks;
+
+    /**
+     * 计算新磁盘的布局: 超级块, inode 块, inode 位图, 数据块位图, 日志区, 数据块
+     *
+     * @param diskSize      磁盘字节数
+     * @param blockSize     块大小
+     * @param inodeCount    至少能容纳的 inode 数,向上取整到整块
+     * @param inodeSize     一个 inode 的字节数
+     * @param journalBlocks 日志区块数
+     */
+    public static SuperBlock layout(long diskSize, int blockSize, int inodeCount, int inodeSize, int journalBlocks) {
+        SuperBlock sb = new SuperBlock();
+        sb.magic = MAGIC;
+        sb.blockSize = blockSize;
+        sb.inodeSize = inodeSize;
+        sb.totalBlocks = (int) (diskSize / blockSize);
+        int bitsPerBlock = blockSize * 8;
+        sb.inodeBlocks = (inodeCount * sb.inodeSize + blockSize - 1) / blockSize;
+        sb.inodeBitmapStart = 1 + sb.inodeBlocks;
+        sb.inodeBitmapBlocks = (sb.getInodeCount() + bitsPerBlock - 1) / bitsPerBlock;
+        sb.blockBitmapStart = sb.inodeBitmapStart + sb.inodeBitmapBlocks;
+        int remaining = sb.totalBlocks - sb.blockBitmapStart - journalBlocks;
+        sb.blockBitmapBlocks = (remaining + bitsPerBlock - 1) / bitsPerBlock;
+        sb.journalStart = sb.blockBitmapStart + sb.blockBitmapBlocks;
+        sb.journalBlocks = journalBlocks;
+        sb.dataStart = sb.journalStart + journalBlocks;
+        sb.dataBlocks = remaining - sb.blockBitmapBlocks;
+        return sb;
+    }
+
+    /**
+     * @return 一个整块,写入 0 号块
+     */
+    public byte[] toBytes() {
+        byte[] ret = new byte[blockSize];
+        Util.putInt(ret, 0, magic);
+        Util.putInt(ret, 4, inodeBlocks);
+        Util.putInt(ret, 8, dataBlocks);
+        Util.putInt(ret, 12, inodeBitmapStart);
+        Util.putInt(ret, 16, inodeBitmapBlocks);
+        Util.putInt(ret, 20, blockBitmapStart);
+        Util.putInt(ret, 24, blockBitmapBlocks);
+        Util.putInt(ret, 28, dataStart);
+        Util.putInt(ret, 32, journalStart);
+        Util.putInt(ret, 36, journalBlocks);
+        Util.putInt(ret, 40, blockSize);
+        Util.putInt(ret, 44, inodeSize);
+        Util.putInt(ret, 48, totalBlocks);
+        Util.putInt(ret, 52, refcountStart);
+        Util.putInt(ret, 56, refcountBlocks);
+        Util.putInt(ret, 60, snapshotTable);
+        Util.putInt(ret, 64, features);
+        Util.putInt(ret, 68, dedupStart);
+        Util.putInt(ret, 72, dedupBlocks);
+        return ret;
+    }
+
+    public static SuperBlock fromBytes(byte[] bytes) {
+        SuperBlock sb = new SuperBlock();
+        sb.magic = Util.getInt(bytes, 0);
+        sb.inodeBlocks = Util.getInt(bytes, 4);
+        sb.dataBlocks = Util.getInt(bytes, 8);
+        sb.inodeBitmapStart = Util.getInt(bytes, 12);
+        sb.inodeBitmapBlocks = Util.getInt(bytes, 16);
+        sb.blockBitmapStart = Util.getInt(bytes, 20);
+        sb.blockBitmapBlocks = Util.getInt(bytes, 24);
+        sb.dataStart = Util.getInt(bytes, 28);
+        sb.journalStart = Util.getInt(bytes, 32);
+        sb.journalBlocks = Util.getInt(bytes, 36);
+        sb.blockSize = Util.getInt(bytes, 40);
+        sb.inodeSize = Util.getInt(bytes, 44);
+        sb.totalBlocks = Util.getInt(bytes, 48);
+        sb.refcountStart = Util.getInt(bytes, 52);
+        sb.refcountBlocks = Util.getInt(bytes, 56);
+        sb.snapshotTable = Util.getInt(bytes, 60);
+        sb.features = Util.getInt(bytes, 64);
+        sb.dedupStart = Util.getInt(bytes, 68);
+        sb.dedupBlocks = Util.getInt(bytes, 72);
+        if (sb.dataStart == 0) {
+            // 旧版本磁盘
+            sb.dataStart = 1 + sb.inodeBlocks;
+        }
+        if (sb.blockSize == 0) {
+            sb.blockSize = BlockDevice.DEFAULT_BLOCK_SIZE;
+            sb.inodeSize = IndexNode.SIZE;
+            sb.totalBlocks = sb.dataStart + sb.dataBlocks;
+        }
+        return sb;
+    }
+
+    public boolean isValid() {
+        return magic == MAGIC && BlockDevice.isValidBlockSize(blockSize) && IndexNode.isValidSize(inodeSize, blockSize);
+    }
+
+    /**
+     * 是否在磁盘上保存了位图
+     */
+    public boolean hasBitmaps() {
+        return inodeBitmapStart != 0;
+    }
+
+    public boolean hasJournal() {
+        return journalBlocks != 0;
+    }
+
+    /**
+     * 是否有数据块的引用计数表和快照表
+     */
+    public boolean hasRefcounts() {
+        return refcountStart != 0;
+    }
+
+    /**
+     * 记录从数据区分配的引用计数表和快照表
+     */
+    void setRefcounts(int refcountStart, int refcountBlocks, int snapshotTable) {
+        this.refcountStart = refcountStart;
+        this.refcountBlocks = refcountBlocks;
+        this.snapshotTable = snapshotTable;
+    }
+
+    /**
+     * 记录从数据区分配的去重索引
+     */
+    void setDedupIndex(int dedupStart, int dedupBlocks) {
+        this.dedupStart = dedupStart;
+        this.dedupBlocks = dedupBlocks;
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+
+    void setFeature(int feature, boolean on) {
+        if (on) {
+            features |= feature;
+        } else {
+            features &= ~feature;
+        }
+    }
+
+    public int getInodeBlocks() {
+        return inodeBlocks;
+    }
+
+    public int getInodeCount() {
+        return inodeBlocks * (blockSize / inodeSize);
+    }
+
+    public int getDataBlocks() {
+        return dataBlocks;
+    }
+
+    public int getInodeBitmapStart() {
+        return inodeBitmapStart;
+    }
+
+    public int getInodeBitmapBlocks() {
+        return inodeBitmapBlocks;
+    }
+
+    public int getBlockBitmapStart() {
+        return blockBitmapStart;
+    }
+
+    public int getBlockBitmapBlocks() {
+        return blockBitmapBlocks;
+    }
+
+    public int getDataStart() {
+        return dataStart;
+    }
+
+    public int getJournalStart() {
+        return journalStart;
+    }
+
+    public int getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getInodeSize() {
+        return inodeSize;
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    public int getRefcountStart() {
+        return refcountStart;
+    }
+
+    public int getRefcountBlocks() {
+        return refcountBlocks;
+    }
+
+    public int getSnapshotTable() {
+        return snapshotTable;
+    }
+
+    public int getDedupStart() {
+        return dedupStart;
+    }
+
+    public int getDedupBlocks() {
+        return dedupBlocks;
+    }
+}
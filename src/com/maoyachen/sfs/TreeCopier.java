@@ -0,0 +1,204 @@
+package com.maoyachen.sfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 在宿主机目录树与文件系统之间按二进制原样复制。
+ * 导入时多个线程并行读取宿主文件,调用线程按遍历顺序依次写入文件系统;
+ * 导出时调用线程依次读出文件,多个线程并行写入宿主文件。同时在途的文件数不超过线程数的两倍
+ */
+public class TreeCopier implements AutoCloseable {
+    private final SimpleFileSystem fs;
+    private final ExecutorService pool;
+    private final int window;
+    private long files;
+    private long bytes;
+    private final List<String> errors = new ArrayList<>();
+
+    private static class Pending {
+        final String path;
+        final Future<byte[]> content;
+
+        Pending(String path, Future<byte[]> content) {
+            this.path = path;
+            this.content = content;
+        }
+    }
+
+    public TreeCopier(SimpleFileSystem fs, int threads) {
+        this.fs = fs;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "copier");
+            t.setDaemon(true);
+            return t;
+        });
+        this.window = threads * 2;
+    }
+
+    /**
+     * 将宿主机目录 hostDir 下的所有文件和目录复制到 dir 下,已存在的文件被覆盖
+     */
+    public void importTree(Path hostDir, String dir) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(hostDir)) {
+            // 排序后父目录总在其中的文件之前
+            paths = walk.sorted().collect(Collectors.toList());
+        }
+        ArrayDeque<Pending> pending = new ArrayDeque<>();
+        for (Path path : paths) {
+            String target = join(dir, hostDir.relativize(path));
+            if (Files.isDirectory(path)) {
+                pending.add(new Pending(target, null));
+                continue;
+            }
+            if (pending.size() >= window) {
+                store(pending.poll());
+            }
+            pending.add(new Pending(target, pool.submit(() -> Files.readAllBytes(path))));
+        }
+        while (!pending.isEmpty()) {
+            store(pending.poll());
+        }
+    }
+
+    /**
+     * 按顺序写入一个目录或文件
+     */
+    private void store(Pending item) {
+        if (item.content == null) {
+            if (fs.stat(item.path) == -1 && fs.mkdir(item.path) == -1) {
+                errors.add("mkdir " + item.path);
+            }
+            return;
+        }
+        byte[] content;
+        try {
+            content = item.content.get();
+        } catch (InterruptedException | ExecutionException e) {
+            errors.add("read " + item.path + ": " + e.getCause());
+            return;
+        }
+        if (fs.stat(item.path) == -1 && fs.touch(item.path) == -1) {
+            errors.add("touch " + item.path);
+            return;
+        }
+        if (!fs.write(item.path, content, 0)) {
+            errors.add("write " + item.path);
+            return;
+        }
+        files++;
+        bytes += content.length;
+    }
+
+    /**
+     * 将 dir 下的所有文件和目录复制到宿主机目录 hostDir 下
+     */
+    public void exportTree(String dir, Path hostDir) throws IOException {
+        ArrayDeque<Pending> pending = new ArrayDeque<>();
+        exportDir(dir, hostDir, pending);
+        while (!pending.isEmpty()) {
+            await(pending.poll());
+        }
+    }
+
+    private void exportDir(String dir, Path hostDir, ArrayDeque<Pending> pending) throws IOException {
+        Iterator<DirEntry> entries = fs.readdir(dir);
+        if (entries == null) {
+            errors.add("list " + dir);
+            return;
+        }
+        Files.createDirectories(hostDir);
+        while (entries.hasNext()) {
+            DirEntry entry = entries.next();
+            String name = entry.getName();
+            String path = join(dir, name);
+            if (entry.isDir()) {
+                exportDir(path, hostDir.resolve(name), pending);
+                continue;
+            }
+            byte[] content = load(path);
+            if (content == null) {
+                errors.add("read " + path);
+                continue;
+            }
+            if (pending.size() >= window) {
+                await(pending.poll());
+            }
+            Path target = hostDir.resolve(name);
+            pending.add(new Pending(path, pool.submit(() -> {
+                Files.write(target, content);
+                return content;
+            })));
+        }
+    }
+
+    private byte[] load(String path) throws IOException {
+        FileHandle handle = fs.open(path);
+        if (handle == null) {
+            return null;
+        }
+        try (handle) {
+            ByteBuffer content = ByteBuffer.allocate((int) handle.size());
+            while (content.hasRemaining() && handle.read(content) > 0) {
+                // 读满或读到文件末尾
+            }
+            return content.array();
+        }
+    }
+
+    private void await(Pending item) {
+        try {
+            bytes += item.content.get().length;
+            files++;
+        } catch (InterruptedException | ExecutionException e) {
+            errors.add("write " + item.path + ": " + e.getCause());
+        }
+    }
+
+    private static String join(String dir, Path relative) {
+        String ret = dir;
+        for (Path name : relative) {
+            if (!name.toString().isEmpty()) {
+                ret = join(ret, name.toString());
+            }
+        }
+        return ret;
+    }
+
+    private static String join(String dir, String name) {
+        return dir.endsWith("/") ? dir + name : dir + "/" + name;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return 复制失败的文件及原因
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -1,5 +1,6 @@
 package com.maoyachen.sfs;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class Util {
@@ -21,6 +22,37 @@ public class Util {
         return ret;
     }
 
+    /**
+     * 从 bytes[offset] 开始读取一个小端 int
+     */
+    static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * 从 bytes[offset] 开始写入一个小端 int
+     */
+    static void putInt(byte[] bytes, int offset, int num) {
+        bytes[offset] = (byte) (num);
+        bytes[offset + 1] = (byte) (num >> 8);
+        bytes[offset + 2] = (byte) (num >> 16);
+        bytes[offset + 3] = (byte) (num >> 24);
+    }
+
+    /**
+     * 一组缓冲区剩余的字节总数
+     */
+    static int remaining(ByteBuffer[] buffers) {
+        int ret = 0;
+        for (ByteBuffer buffer : buffers) {
+            ret += buffer.remaining();
+        }
+        return ret;
+    }
+
     static String buildString(byte[] bytes, int offset, int length) {
         for (int i = 0; i < length; i++) {
             if (bytes[offset + i] == '\0') {